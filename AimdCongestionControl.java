@@ -0,0 +1,59 @@
+/*
+ * Additive-increase / multiplicative-decrease window (TCP Reno).
+ * - Slow start: +1 segment per ACKed segment (doubling per RTT) until ssthresh
+ * - Congestion avoidance: +1 segment per window of ACKs (one per RTT)
+ * - Loss: ssthresh = window / 2 and continue from there; timeout: restart from one segment
+ */
+
+public class AimdCongestionControl implements CongestionControl {
+    private static final double DECREASE = 0.5;
+    private static final double SLOW_START_GAIN = 2.0;
+    private static final double AVOIDANCE_GAIN = 1.25;
+
+    private final int maxWindow;
+    private double cwnd;
+    private double ssthresh;
+
+    public AimdCongestionControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) Math.max(1, Math.min(maxWindow, cwnd));
+    }
+
+    @Override
+    public void onAck(int acked, double srttMillis) {
+        if (cwnd < ssthresh) {
+            cwnd += acked;
+        } else {
+            cwnd += (double) acked / cwnd;
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    @Override
+    public void onLoss() {
+        ssthresh = Math.max(2, cwnd * DECREASE);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout() {
+        ssthresh = Math.max(2, cwnd * DECREASE);
+        cwnd = 1;
+    }
+
+    @Override
+    public double getPacingGain() {
+        return (cwnd < ssthresh) ? SLOW_START_GAIN : AVOIDANCE_GAIN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AIMD cwnd=%.1f ssthresh=%.1f", cwnd, ssthresh);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Bounded pool of reusable, equally sized ByteBuffers for the packet send/receive paths.
+ * - Direct buffers by default, so channel I/O can skip the JDK's temporary copy
+ * - acquire() falls back to a fresh allocation when the pool is empty (counted as a miss);
+ *   release() drops the buffer if the pool is already full
+ * - Backed by an ArrayBlockingQueue, so neither call allocates once the pool is warm
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+    private final boolean direct;
+    private final AtomicLong misses = new AtomicLong();
+
+    public BufferPool(int capacity, int bufferSize, boolean direct) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    // A pool of direct buffers big enough for any datagram (Packet.MAX_MTU), pre-filled so the first packets don't allocate either
+    public static BufferPool forPackets(int capacity) {
+        BufferPool pool = new BufferPool(capacity, Packet.MAX_MTU, true);
+        for (int i = 0; i < capacity; i++) {
+            pool.free.offer(pool.allocate());
+        }
+        return pool;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = allocate();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+            free.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ByteBuffer allocate() {
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+}
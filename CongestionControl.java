@@ -0,0 +1,81 @@
+/*
+ * Congestion window of one SlidingWindowSender, driven by its ACK and loss signals.
+ * - AIMD: Reno-style slow start, then one more segment per RTT, halved on loss
+ * - CUBIC: after a loss the window grows back along a cubic curve centred on the window
+ *   where the loss happened, never slower than AIMD would
+ * - NONE: always the full flow-control window (no congestion control)
+ * - Windows count segments; the sender never has more than min(window, agreed window) in flight
+ * - Instances belong to one sender thread and are not thread-safe
+ */
+
+public interface CongestionControl {
+
+    // --- Algorithms (the "cc" session option) ---
+    String NONE = "none";
+    String AIMD = "aimd";
+    String CUBIC = "cubic";
+
+    // RFC 6928 initial window
+    int INITIAL_WINDOW = 10;
+
+    // Segments that may be in flight now
+    int getWindow();
+
+    // 'acked' segments were newly acknowledged; srttMillis is -1 until the first RTT sample
+    void onAck(int acked, double srttMillis);
+
+    // A segment was lost while ACKs still arrive; called at most once per window of data
+    void onLoss();
+
+    // Nothing came back for a whole RTO
+    void onTimeout();
+
+    // Pacing rate as a multiple of window / SRTT
+    double getPacingGain();
+
+    static boolean isKnown(String name) {
+        return NONE.equalsIgnoreCase(name) || AIMD.equalsIgnoreCase(name) || CUBIC.equalsIgnoreCase(name);
+    }
+
+    static CongestionControl create(String name, int maxWindow) {
+        if (NONE.equalsIgnoreCase(name)) {
+            return new Fixed(maxWindow);
+        }
+        if (AIMD.equalsIgnoreCase(name)) {
+            return new AimdCongestionControl(maxWindow);
+        }
+        return new CubicCongestionControl(maxWindow);
+    }
+
+    // The window the sender would use without congestion control
+    final class Fixed implements CongestionControl {
+        private final int window;
+
+        public Fixed(int window) {
+            this.window = window;
+        }
+
+        @Override
+        public int getWindow() {
+            return window;
+        }
+
+        @Override
+        public void onAck(int acked, double srttMillis) {
+        }
+
+        @Override
+        public void onLoss() {
+        }
+
+        @Override
+        public void onTimeout() {
+        }
+
+        // No pacing: the whole window goes out as fast as the transport takes it
+        @Override
+        public double getPacingGain() {
+            return 0;
+        }
+    }
+}
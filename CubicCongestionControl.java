@@ -0,0 +1,93 @@
+/*
+ * CUBIC window growth (RFC 9438).
+ * - After a loss the window drops to BETA * W_max and then follows
+ *   W(t) = C * (t - K)^3 + W_max: fast at first, flat around W_max, probing beyond it
+ * - Never grows slower than the AIMD-equivalent estimate (the "Reno-friendly" region),
+ *   which is what matters on short-RTT paths such as a LAN
+ * - Fast convergence: a loss below the previous W_max lowers W_max further,
+ *   so competing flows give up bandwidth sooner
+ * - Slow start below ssthresh, same as AIMD
+ */
+
+public class CubicCongestionControl implements CongestionControl {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    private static final double SLOW_START_GAIN = 2.0;
+    private static final double AVOIDANCE_GAIN = 1.25;
+
+    private final int maxWindow;
+    private double cwnd;
+    private double ssthresh;
+
+    private double wMax = 0;
+    private double k = 0;         // seconds until the curve reaches wMax again
+    private double renoWindow = 0; // AIMD-equivalent window since the epoch started
+    private long epochStart = -1;  // nanos, -1 until the first ACK after a reduction
+
+    public CubicCongestionControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) Math.max(1, Math.min(maxWindow, cwnd));
+    }
+
+    @Override
+    public void onAck(int acked, double srttMillis) {
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + acked, maxWindow);
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (epochStart < 0) {
+            epochStart = now;
+            k = (cwnd < wMax) ? Math.cbrt((wMax - cwnd) / C) : 0;
+            wMax = Math.max(wMax, cwnd);
+            renoWindow = cwnd;
+        }
+
+        // Aim for where the curve will be one RTT from now
+        double rtt = Math.max(0, srttMillis) / 1000.0;
+        double t = (now - epochStart) / 1e9 + rtt;
+        double target = C * Math.pow(t - k, 3) + wMax;
+
+        renoWindow += 3 * (1 - BETA) / (1 + BETA) * acked / cwnd;
+
+        if (target > cwnd) {
+            cwnd += (target - cwnd) / cwnd * acked;
+        }
+        cwnd = Math.min(Math.max(cwnd, renoWindow), maxWindow);
+    }
+
+    @Override
+    public void onLoss() {
+        reduce();
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout() {
+        reduce();
+        cwnd = 1;
+    }
+
+    private void reduce() {
+        wMax = (cwnd < wMax) ? cwnd * (1 + BETA) / 2 : cwnd;
+        ssthresh = Math.max(2, cwnd * BETA);
+        epochStart = -1;
+    }
+
+    @Override
+    public double getPacingGain() {
+        return (cwnd < ssthresh) ? SLOW_START_GAIN : AVOIDANCE_GAIN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CUBIC cwnd=%.1f ssthresh=%.1f wMax=%.1f", cwnd, ssthresh, wMax);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Forward error correction, receiving side (see FecEncoder for the PARITY format).
+ * - Every DATA segment is remembered as it arrived on the wire (still compressed, if it was)
+ *   for two windows, which covers any block the sender can still be sending parity for
+ * - A PARITY whose group is missing exactly one segment rebuilds it from the others; one
+ *   missing more (or arriving ahead of its segments) is dropped, and the sender's
+ *   retransmission repairs the gap as it would without FEC
+ * - A rebuilt segment goes through the ReceiveWindow like any other DATA
+ */
+
+import java.nio.ByteBuffer;
+
+public class FecDecoder {
+    private final Packet[] recent; // indexed by (seq % recent.length)
+
+    public FecDecoder(int windowSize) {
+        this.recent = new Packet[2 * windowSize];
+    }
+
+    public void onData(Packet data) {
+        recent[slot(data.getSequenceNumber())] = data;
+    }
+
+    // The DATA segment this parity restores, or null if it can't restore one that is still needed
+    public Packet rebuild(Packet parity, long expectedSeq) {
+        int length = parity.getPayloadLength() - FecEncoder.HEADER_SIZE;
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer payload = parity.getPayloadBuffer();
+        int blockLength = payload.get(0) & 0xFF;
+        int parityCount = payload.get(1) & 0xFF;
+        int group = payload.get(2) & 0xFF;
+        int segmentLength = payload.getShort(4) & 0xFFFF;
+        int flags = payload.getShort(6) & 0xFFFF;
+        if (parityCount == 0 || group >= parityCount || blockLength > recent.length / 2) {
+            return null;
+        }
+
+        // The missing segment's length and flags are what the others' leave over
+        long first = parity.getSequenceNumber();
+        long missing = -1;
+        for (long seq = first + group; seq < first + blockLength; seq += parityCount) {
+            if (!isRecent(seq)) {
+                if (missing >= 0) {
+                    return null; // two holes: XOR can't tell them apart
+                }
+                missing = seq;
+            } else {
+                Packet member = recent[slot(seq)];
+                segmentLength ^= member.getPayloadLength();
+                flags ^= member.getFlags() >>> 16;
+            }
+        }
+        if (missing < expectedSeq || segmentLength > length) {
+            return null; // nothing missing, already delivered, or not a parity we wrote
+        }
+
+        // Bytes past the missing segment's length only carry the other segments' padding
+        byte[] rebuilt = new byte[segmentLength];
+        ByteBuffer out = ByteBuffer.wrap(rebuilt);
+        FecEncoder.xor(out, payload.position(FecEncoder.HEADER_SIZE), segmentLength);
+        for (long seq = first + group; seq < first + blockLength; seq += parityCount) {
+            if (seq != missing) {
+                Packet member = recent[slot(seq)];
+                FecEncoder.xor(out, member.getPayloadBuffer(), Math.min(segmentLength, member.getPayloadLength()));
+            }
+        }
+        int knownFlags = Packet.FLAG_COMPRESSED | Packet.FLAG_ACK_NOW;
+        return new Packet(Packet.DATA | ((flags << 16) & knownFlags), missing, parity.getSessionId(), rebuilt);
+    }
+
+    private boolean isRecent(long seq) {
+        Packet packet = recent[slot(seq)];
+        return packet != null && packet.getSequenceNumber() == seq;
+    }
+
+    private int slot(long seq) {
+        return (int) Math.floorMod(seq, (long) recent.length);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Forward error correction for sessions that agreed on "fec" (see SessionOptions), sending side.
+ * - DATA goes out in blocks of up to 'blockSize' segments; right behind a block's last segment
+ *   come its PARITY packets, so the receiver (FecDecoder) can rebuild a lost segment without
+ *   waiting a round trip for the retransmission
+ * - Parity g of a block is the XOR of the block's segments g, g + m, g + 2m, ... (m parity packets,
+ *   shorter segments zero-padded), so each one repairs a single loss in its group; interleaving
+ *   the groups means a burst of up to m consecutive losses is repaired as well
+ * - m follows the loss rate the sender sees (segments that needed a retransmission or were
+ *   reported missing by a SACK): 1 on a clean path, up to half the block on a very lossy one
+ * - A block is closed early at the end of the data, and when the window is stuck on a hole inside
+ *   it, so a parity is never held back waiting for an ACK that only it could bring
+ * - Segments are folded in as they are first sent, 8 bytes at a time, so encoding is one pass
+ *   over the data; retransmissions reuse the same Packets and are not folded in again
+ * - PARITY payload: [block length:1][parity count:1][group:1][reserved:1][XOR of the segment
+ *   lengths:2][XOR of the segments' header flags >>> 16:2], then the XOR of the payloads.
+ *   The sequence number is the block's first segment
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class FecEncoder {
+    public static final int HEADER_SIZE = 8;
+
+    private static final double LOSS_GAIN = 1.0 / 128; // weight of each acknowledged segment in the loss rate
+
+    private final int blockSize;
+    private final int maxParity;
+    private final int segmentSize;
+
+    // One accumulator per group of the current block, allocated by its first segment
+    private final byte[][] groups;
+    private final int[] groupLengths;
+    private final int[] lengthXor;
+    private final int[] flagsXor;
+
+    private long blockStart;
+    private int blockLength;
+    private int parity;
+    private double lossRate = 0;
+
+    // 'mtu' is the session's datagram size (SessionOptions.getMtu), which every PARITY packet must fit
+    public FecEncoder(int blockSize, int segmentSize, int mtu, long initialSeq) {
+        if (blockSize < 2 || blockSize > 255) {
+            throw new IllegalArgumentException("FEC block size must be between 2 and 255: " + blockSize);
+        }
+        if (Packet.HEADER_SIZE + HEADER_SIZE + segmentSize > mtu) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " leaves no room for the parity header in a " + mtu + "-byte datagram");
+        }
+        this.blockSize = blockSize;
+        this.maxParity = blockSize / 2;
+        this.segmentSize = segmentSize;
+        this.groups = new byte[maxParity][];
+        this.groupLengths = new int[maxParity];
+        this.lengthXor = new int[maxParity];
+        this.flagsXor = new int[maxParity];
+        this.blockStart = initialSeq;
+    }
+
+    // Folds a segment, sent for the first time and in sequence order, into the current block;
+    // returns true once the block is full and its parity should go out
+    public boolean add(Packet data) {
+        if (blockLength == 0) {
+            // The parity count is fixed for the whole block
+            parity = getParityCount();
+        }
+        int group = blockLength % parity;
+        if (groups[group] == null) {
+            groups[group] = new byte[HEADER_SIZE + segmentSize];
+        }
+        int length = data.getPayloadLength();
+        xor(ByteBuffer.wrap(groups[group], HEADER_SIZE, segmentSize).slice(), data.getPayloadBuffer(), length);
+        groupLengths[group] = Math.max(groupLengths[group], length);
+        lengthXor[group] ^= length;
+        flagsXor[group] ^= data.getFlags() >>> 16;
+        blockLength++;
+        return blockLength == blockSize;
+    }
+
+    // The first segment of the block being built (or of the next one, if it's empty)
+    public long getBlockStart() {
+        return blockStart;
+    }
+
+    public int getBlockLength() {
+        return blockLength;
+    }
+
+    // Sends the current block's parity, if it has any segments, and starts the next block;
+    // returns the number of PARITY packets sent
+    public int flush(PacketChannel channel) throws IOException {
+        int sent = 0;
+        for (int group = 0; group < parity && group < blockLength; group++) {
+            byte[] payload = groups[group];
+            ByteBuffer header = ByteBuffer.wrap(payload);
+            header.put((byte) blockLength).put((byte) parity).put((byte) group).put((byte) 0);
+            header.putShort((short) lengthXor[group]).putShort((short) flagsXor[group]);
+            // The Packet keeps the array (a LinkEmulator may send it later), so the next block gets fresh ones
+            channel.send(Packet.wrap(Packet.PARITY, blockStart, channel.getSessionId(),
+                    ByteBuffer.wrap(payload, 0, HEADER_SIZE + groupLengths[group])));
+            groups[group] = null;
+            groupLengths[group] = 0;
+            lengthXor[group] = 0;
+            flagsXor[group] = 0;
+            sent++;
+        }
+        blockStart += blockLength;
+        blockLength = 0;
+        return sent;
+    }
+
+    // Called once per segment as it is acknowledged; 'lost' if it took a retransmission or a repair
+    public void onAcked(boolean lost) {
+        lossRate += ((lost ? 1 : 0) - lossRate) * LOSS_GAIN;
+    }
+
+    // Parity packets per block for the next block
+    public int getParityCount() {
+        return Math.max(1, Math.min(maxParity, (int) Math.ceil(2 * blockSize * lossRate)));
+    }
+
+    // into[i] ^= from[i] for the first 'length' bytes of each (from their positions), a word at a time
+    static void xor(ByteBuffer into, ByteBuffer from, int length) {
+        into = into.duplicate().order(ByteOrder.nativeOrder());
+        from = from.duplicate().order(ByteOrder.nativeOrder());
+        int intoAt = into.position();
+        int fromAt = from.position();
+        int i = 0;
+        for (; i <= length - Long.BYTES; i += Long.BYTES) {
+            into.putLong(intoAt + i, into.getLong(intoAt + i) ^ from.getLong(fromAt + i));
+        }
+        for (; i < length; i++) {
+            into.put(intoAt + i, (byte) (into.get(intoAt + i) ^ from.get(fromAt + i)));
+        }
+    }
+}
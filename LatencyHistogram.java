@@ -0,0 +1,88 @@
+/*
+ * Lock-free latency histogram in the style of HdrHistogram, for RTT and handshake times.
+ * - Values are recorded in microseconds into log-linear buckets: each power of two is split
+ *   into SUB_BUCKETS linear steps, so any value is reported within about 3% of what was recorded
+ * - Recording is one array increment plus three LongAdder/LongAccumulator updates; it never
+ *   blocks and never allocates, so it can be called from the packet path
+ * - Values above MAX_MICROS (about 19 hours) are clamped into the last bucket
+ * - Percentiles are read from a live histogram, so they are only as consistent as the
+ *   recording threads allow; that is fine for monitoring
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 31;
+    public static final long MAX_MICROS = (1L << (MAX_SHIFT + SUB_BUCKET_BITS + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos) / 1_000);
+    }
+
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_MICROS));
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Mean in microseconds, or 0 before the first value
+    public double getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // The value (in microseconds) that 'percentile' percent of recorded values are at or below
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // Values below SUB_BUCKETS * 2 get a bucket each; above that, bucket width doubles with every power of two
+    private static int bucket(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // The largest value that lands in 'bucket', as HdrHistogram reports percentiles
+    private static long highestEquivalent(int bucket) {
+        int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+        long low = (long) (bucket - shift * SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", getCount(), getMean() / 1000,
+                getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
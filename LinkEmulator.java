@@ -0,0 +1,173 @@
+/*
+ * Transport decorator that makes a loopback link behave like a real path, for testing congestion control.
+ * - Each sent datagram is dropped with probability 'lossRate' (random loss)
+ * - The rest arrive 'delayMillis' later (one-way propagation delay)
+ * - With a bandwidth set, datagrams queue behind each other at that rate and are tail-dropped
+ *   once 'queueBytes' are waiting, like the bottleneck router a congestion controller must not overrun
+ * - With reordering set, a fraction of datagrams is held back an extra 'reorderMillis', so the
+ *   ones sent after it overtake it
+ * - Receiving passes straight through; wrap both ends to delay both directions
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LinkEmulator implements Transport {
+    private final Transport inner;
+    private final double lossRate;
+    private final long delayNanos;
+    private final long bytesPerSecond;
+    private final long queueBytes;
+    private volatile double reorderRate = 0;
+    private volatile long reorderNanos = 0;
+
+    // Delivers delayed datagrams in departure order
+    private final ScheduledExecutorService wire = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "link-emulator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long linkFreeAt = 0; // nanos; guarded by this
+
+    private final AtomicLong randomDrops = new AtomicLong();
+    private final AtomicLong queueDrops = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+
+    // bytesPerSecond <= 0 means unlimited bandwidth (no queue)
+    public LinkEmulator(Transport inner, double lossRate, long delayMillis, long bytesPerSecond, long queueBytes) {
+        this.inner = inner;
+        this.lossRate = lossRate;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.bytesPerSecond = bytesPerSecond;
+        this.queueBytes = queueBytes;
+    }
+
+    // Holds back a 'rate' fraction of datagrams by an extra 'extraDelayMillis'
+    public LinkEmulator withReordering(double rate, long extraDelayMillis) {
+        if (rate < 0 || rate > 1 || extraDelayMillis < 0) {
+            throw new IllegalArgumentException("Bad reordering: rate " + rate + ", delay " + extraDelayMillis + " ms");
+        }
+        this.reorderRate = rate;
+        this.reorderNanos = TimeUnit.MILLISECONDS.toNanos(extraDelayMillis);
+        return this;
+    }
+
+    @Override
+    public void sendPacket(Packet packet, InetAddress address, int port) throws IOException {
+        sendPacket(packet, new InetSocketAddress(address, port));
+    }
+
+    @Override
+    public void sendPacket(Packet packet, InetSocketAddress target) throws IOException {
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            randomDrops.incrementAndGet();
+            return;
+        }
+
+        long now = System.nanoTime();
+        long departure = now;
+        if (bytesPerSecond > 0) {
+            long size = Packet.HEADER_SIZE + packet.getPayloadLength();
+            synchronized (this) {
+                long start = Math.max(now, linkFreeAt);
+                long backlog = (start - now) * bytesPerSecond / 1_000_000_000L;
+                if (backlog + size > queueBytes) {
+                    queueDrops.incrementAndGet();
+                    return;
+                }
+                linkFreeAt = start + size * 1_000_000_000L / bytesPerSecond;
+                departure = linkFreeAt;
+            }
+        }
+
+        long deliverIn = departure + delayNanos - now;
+        if (reorderRate > 0 && ThreadLocalRandom.current().nextDouble() < reorderRate) {
+            reordered.incrementAndGet();
+            deliverIn += reorderNanos;
+        }
+        if (deliverIn <= 0) {
+            inner.sendPacket(packet, target);
+            return;
+        }
+        wire.schedule(() -> {
+            try {
+                inner.sendPacket(packet, target);
+            } catch (IOException e) {
+                System.err.println("Emulated link send failed: " + e.getMessage());
+            }
+        }, deliverIn, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void beginBatch() {
+        inner.beginBatch();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        inner.flush();
+    }
+
+    @Override
+    public Packet receivePacket(DatagramPacket incoming) throws IOException {
+        return inner.receivePacket(incoming);
+    }
+
+    @Override
+    public Packet receivePacket(DatagramPacket incoming, long timeoutMillis) throws IOException {
+        return inner.receivePacket(incoming, timeoutMillis);
+    }
+
+    @Override
+    public int receiveBatch(ReceiveHandler handler, long timeoutMillis) throws IOException {
+        return inner.receiveBatch(handler, timeoutMillis);
+    }
+
+    @Override
+    public int getTimeout() {
+        return inner.getTimeout();
+    }
+
+    @Override
+    public RetransmissionTimer newRetransmissionTimer() {
+        return inner.newRetransmissionTimer();
+    }
+
+    @Override
+    public Transport openEphemeral() throws IOException {
+        return new LinkEmulator(inner.openEphemeral(), lossRate, TimeUnit.NANOSECONDS.toMillis(delayNanos), bytesPerSecond, queueBytes)
+                .withReordering(reorderRate, TimeUnit.NANOSECONDS.toMillis(reorderNanos));
+    }
+
+    // Each shard emulates its own link, so a bandwidth limit applies per shard
+    @Override
+    public Transport openShard() throws IOException {
+        return new LinkEmulator(inner.openShard(), lossRate, TimeUnit.NANOSECONDS.toMillis(delayNanos), bytesPerSecond, queueBytes)
+                .withReordering(reorderRate, TimeUnit.NANOSECONDS.toMillis(reorderNanos));
+    }
+
+    public long getRandomDrops() {
+        return randomDrops.get();
+    }
+
+    // Datagrams dropped because the emulated bottleneck queue was full
+    public long getQueueDrops() {
+        return queueDrops.get();
+    }
+
+    // Datagrams held back so that later ones overtook them
+    public long getReordered() {
+        return reordered.get();
+    }
+
+    @Override
+    public void close() {
+        wire.shutdownNow();
+        inner.close();
+    }
+}
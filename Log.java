@@ -0,0 +1,51 @@
+/*
+ * Level gate for the diagnostic messages on the packet path.
+ * - Session-level events (handshakes, completions, errors) still go straight to System.out/err
+ * - Per-packet messages (every DATA received, out-of-order arrivals, per-session metric summaries)
+ *   are DEBUG and are off by default
+ * - Callers test isDebug() before building the message, so a disabled message costs one
+ *   volatile read and no string concatenation
+ * - The level comes from -Drudp.log=debug and can be changed at runtime with setLevel()
+ */
+
+public final class Log {
+    public static final int INFO = 0;
+    public static final int DEBUG = 1;
+
+    // An unknown name in the system property falls back to INFO rather than failing class initialization
+    private static volatile int level = Math.max(INFO, parse(System.getProperty("rudp.log", "info")));
+
+    private Log() {
+    }
+
+    public static boolean isDebug() {
+        return level >= DEBUG;
+    }
+
+    public static void debug(String message) {
+        if (level >= DEBUG) {
+            System.out.println(message);
+        }
+    }
+
+    // "info" or "debug"
+    public static void setLevel(String name) {
+        int parsed = parse(name);
+        if (parsed < 0) {
+            throw new IllegalArgumentException("Unknown log level: " + name);
+        }
+        level = parsed;
+    }
+
+    public static String getLevel() {
+        return (level >= DEBUG) ? "debug" : "info";
+    }
+
+    // -1 for an unknown name
+    private static int parse(String name) {
+        if ("debug".equalsIgnoreCase(name)) {
+            return DEBUG;
+        }
+        return "info".equalsIgnoreCase(name) ? INFO : -1;
+    }
+}
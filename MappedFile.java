@@ -0,0 +1,106 @@
+/*
+ * Read-only memory mapping of a file being served for download.
+ * - DATA segments are slices of the mapping, so nothing is copied until the datagram is encoded
+ * - Mappings are shared: concurrent downloads of the same file (same path, size and
+ *   modification time) reuse one mapping, which is dropped when the last one releases it
+ * - Files over 2 GB are mapped in several chunks, each a whole number of segments long,
+ *   so no segment ever straddles two chunks
+ * A file must not be truncated while it is mapped; a changed file gets a new mapping.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MappedFile {
+    private static final Map<String, MappedFile> SHARED = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final long size;
+    private final long chunkSize;
+    private final MappedByteBuffer[] chunks;
+    private int references = 0; // guarded by SHARED's per-key compute()
+
+    private MappedFile(String key, File file, int segmentSize) throws IOException {
+        this.key = key;
+        this.size = file.length();
+        this.chunkSize = (Integer.MAX_VALUE / segmentSize) * (long) segmentSize;
+        int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        this.chunks = new MappedByteBuffer[chunkCount];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < chunkCount; i++) {
+                long offset = i * chunkSize;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(chunkSize, size - offset));
+            }
+        }
+    }
+
+    // Maps the file, or joins an existing mapping of the same version of it
+    public static MappedFile open(File file, int segmentSize) throws IOException {
+        String key = file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified() + "|" + segmentSize;
+        try {
+            return SHARED.compute(key, (k, existing) -> {
+                MappedFile mapped = existing;
+                if (mapped == null) {
+                    try {
+                        mapped = new MappedFile(k, file, segmentSize);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                mapped.references++;
+                return mapped;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Drops this download's reference; the mapping is forgotten once nobody uses it
+    public void release() {
+        SHARED.computeIfPresent(key, (k, mapped) -> (--mapped.references == 0) ? null : mapped);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Read-only view of [offset, offset + length), without copying
+    public ByteBuffer slice(long offset, int length) {
+        int chunk = (int) (offset / chunkSize);
+        return chunks[chunk].slice((int) (offset - chunk * chunkSize), length);
+    }
+
+    // Segments [firstSegment, end of file) as consecutive slices
+    public SegmentSource segments(int segmentSize, long firstSegment) {
+        return segments(segmentSize, firstSegment, Long.MAX_VALUE);
+    }
+
+    // Segments [firstSegment, endSegment), e.g. one stripe of a striped transfer
+    public SegmentSource segments(int segmentSize, long firstSegment, long endSegment) {
+        long endOffset = (endSegment > size / segmentSize) ? size : endSegment * segmentSize;
+        return new SegmentSource() {
+            private long offset = firstSegment * segmentSize;
+
+            @Override
+            public ByteBuffer next() {
+                if (offset >= endOffset) {
+                    return null;
+                }
+                int length = (int) Math.min(segmentSize, endOffset - offset);
+                ByteBuffer segment = slice(offset, length);
+                offset += length;
+                return segment;
+            }
+        };
+    }
+
+    // Number of files currently mapped for download
+    public static int sharedCount() {
+        return SHARED.size();
+    }
+}
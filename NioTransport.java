@@ -0,0 +1,258 @@
+/*
+ * Transport on a non-blocking DatagramChannel and a Selector.
+ * - Receive: one select() per wakeup, then every ready datagram is read into the
+ *   transport's direct receive buffer and decoded in place with PacketView (no SocketTimeoutException on idle)
+ * - Send: immediate by default; between beginBatch() and flush() a thread's packets
+ *   are queued in pooled buffers and written back-to-back. The send pool is one per process,
+ *   filled lazily up to SEND_POOL_SIZE buffers
+ * - A send the kernel refuses (socket buffer full) is dropped and counted, the same as
+ *   loss on the wire; the sliding window retransmits it
+ * - Receiving is single-threaded (the client, or the server dispatcher); sending is thread-safe
+ * - Datagrams and bytes in each direction, and malformed datagrams, are counted in getMetrics()
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NioTransport implements Transport {
+    private static final int MAX_BATCH = 64;
+    // Send buffers are shared by every transport in the process (one per stripe and per shard)
+    // and allocated on first use, so idle transports pin no direct memory
+    private static final int SEND_POOL_SIZE = 256;
+    private static final BufferPool SEND_POOL = new BufferPool(SEND_POOL_SIZE, Packet.MAX_MTU, true);
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int timeout;
+
+    // Receive side, owned by the receiving thread
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Packet.MAX_MTU);
+    private final PacketView receiveView = new PacketView();
+    private final ArrayDeque<Packet> ready = new ArrayDeque<>();
+    private final ArrayDeque<InetSocketAddress> readySources = new ArrayDeque<>();
+    private final ReceiveHandler enqueueReady = (packet, source) -> {
+        ready.add(packet.toPacket());
+        readySources.add(source);
+    };
+
+    // Send side: one pending batch per sending thread
+    private static final class Batch {
+        final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+        final InetSocketAddress[] targets = new InetSocketAddress[MAX_BATCH];
+        int size = 0;
+        boolean open = false;
+    }
+    private final ThreadLocal<Batch> batches = ThreadLocal.withInitial(Batch::new);
+    private final ThreadLocal<PacketView> sendViews = ThreadLocal.withInitial(PacketView::new);
+
+    private final AtomicLong sendDrops = new AtomicLong();
+    private final TransferMetrics metrics = new TransferMetrics();
+
+    private final boolean reusePort;
+
+    public NioTransport(int port, int timeout) throws IOException {
+        this(port, timeout, false);
+    }
+
+    // With 'reusePort' other channels may bind the same port (see openShard)
+    public NioTransport(int port, int timeout, boolean reusePort) throws IOException {
+        this.channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new SocketException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            this.channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.reusePort = reusePort;
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void sendPacket(Packet packet, InetAddress address, int port) throws IOException {
+        sendPacket(packet, new InetSocketAddress(address, port));
+    }
+
+    @Override
+    public void sendPacket(Packet packet, InetSocketAddress target) throws IOException {
+        ByteBuffer buffer = SEND_POOL.acquire();
+        sendViews.get().encode(buffer, packet);
+
+        Batch batch = batches.get();
+        if (!batch.open) {
+            try {
+                sendNow(buffer, target);
+            } finally {
+                SEND_POOL.release(buffer);
+            }
+            return;
+        }
+        batch.buffers[batch.size] = buffer;
+        batch.targets[batch.size] = target;
+        batch.size++;
+        if (batch.size == MAX_BATCH) {
+            writeBatch(batch);
+        }
+    }
+
+    @Override
+    public void beginBatch() {
+        batches.get().open = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        Batch batch = batches.get();
+        batch.open = false;
+        writeBatch(batch);
+    }
+
+    @Override
+    public Packet receivePacket(DatagramPacket incoming) throws IOException {
+        return receivePacket(incoming, timeout);
+    }
+
+    @Override
+    public Packet receivePacket(DatagramPacket incoming, long timeoutMillis) throws IOException {
+        // Drain a whole wakeup's worth at once and hand the packets out one per call.
+        // A wakeup that only brought malformed datagrams doesn't end the wait.
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (ready.isEmpty()) {
+            receiveBatch(enqueueReady, timeoutMillis);
+            timeoutMillis = (deadline - System.nanoTime()) / 1_000_000L;
+            if (timeoutMillis <= 0) {
+                break;
+            }
+        }
+        Packet packet = ready.poll();
+        if (packet == null) {
+            return null;
+        }
+        incoming.setSocketAddress(readySources.poll());
+        return packet;
+    }
+
+    @Override
+    public int receiveBatch(ReceiveHandler handler, long timeoutMillis) throws IOException {
+        int delivered = drain(handler);
+        if (delivered > 0) {
+            return delivered;
+        }
+        // Nothing pending: block in the selector instead of in a timed-out receive
+        if (selector.select(Math.max(1, timeoutMillis)) > 0) {
+            selector.selectedKeys().clear();
+        }
+        return drain(handler);
+    }
+
+    private int drain(ReceiveHandler handler) throws IOException {
+        int delivered = 0;
+        while (delivered < MAX_BATCH) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null) {
+                break;
+            }
+            receiveBuffer.flip();
+            metrics.onPacketReceived(receiveBuffer.remaining());
+            try {
+                receiveView.wrap(receiveBuffer);
+            } catch (IllegalArgumentException e) {
+                metrics.onMalformed();
+                continue;
+            }
+            handler.onPacket(receiveView, (InetSocketAddress) source);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    private void writeBatch(Batch batch) throws IOException {
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                sendNow(batch.buffers[i], batch.targets[i]);
+            }
+        } finally {
+            for (int i = 0; i < batch.size; i++) {
+                SEND_POOL.release(batch.buffers[i]);
+                batch.buffers[i] = null;
+                batch.targets[i] = null;
+            }
+            batch.size = 0;
+        }
+    }
+
+    private void sendNow(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+        int sent = channel.send(buffer, target);
+        if (sent == 0) {
+            sendDrops.incrementAndGet();
+        } else {
+            metrics.onPacketSent(sent);
+        }
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public RetransmissionTimer newRetransmissionTimer() {
+        return new RetransmissionTimer(timeout, SocketManager.MIN_RTO_MILLIS, SocketManager.MAX_RTO_MILLIS);
+    }
+
+    @Override
+    public Transport openEphemeral() throws IOException {
+        return new NioTransport(0, timeout);
+    }
+
+    @Override
+    public Transport openShard() throws IOException {
+        if (!reusePort) {
+            throw new IOException("Channel was opened without SO_REUSEPORT");
+        }
+        return new NioTransport(getLocalPort(), timeout, true);
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    // Sends the kernel refused because its buffer was full
+    public long getSendDrops() {
+        return sendDrops.get();
+    }
+
+    // Datagrams dropped because they were truncated or failed their checksum
+    public long getMalformedCount() {
+        return metrics.getMalformed();
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Spreads a sender's new segments over the round trip instead of sending the window as one burst.
+ * - One segment every SRTT / (gain * window), following the congestion window as it changes
+ * - Unused time carries over as credit, capped at MAX_CREDIT_NANOS: receives only time out
+ *   in whole milliseconds, so a short burst per wakeup is what keeps the average rate
+ * - Paces nothing before the first RTT sample, or when the gain is 0
+ */
+
+public class Pacer {
+    private static final long MAX_CREDIT_NANOS = 1_000_000;
+
+    private long interval = 0;    // nanos between segments, 0 = unpaced
+    private long nextSendAt = 0;  // nanos
+
+    public void setRate(double srttMillis, int window, double gain) {
+        if (srttMillis <= 0 || gain <= 0) {
+            interval = 0;
+            return;
+        }
+        interval = (long) (srttMillis * 1_000_000 / (gain * window));
+    }
+
+    public boolean canSend(long now) {
+        return interval == 0 || now - nextSendAt >= 0;
+    }
+
+    public void onSend(long now) {
+        if (interval == 0) {
+            return;
+        }
+        nextSendAt = Math.max(nextSendAt, now - Math.max(MAX_CREDIT_NANOS, interval)) + interval;
+    }
+
+    // How long to wait before the next segment may go out (at least 1ms, the receive granularity)
+    public long millisUntilReady(long now) {
+        long wait = nextSendAt - now;
+        return (interval == 0 || wait <= 0) ? 0 : Math.max(1, (wait + 999_999) / 1_000_000);
+    }
+
+    public long getIntervalNanos() {
+        return interval;
+    }
+}
@@ -1,5 +1,8 @@
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.CRC32C;
 /*
  * [cite_start]TODO: Define the Packet structure according to Project Specs [cite: 32, 33]
  * - [cite_start]Implement fields for Message Type (SYN, DATA, ACK, FIN, ERROR) [cite: 34]
@@ -21,17 +24,49 @@ public class Packet {
     public static final int FIN = 3;
     public static final int ERROR = 4;
     public static final int SYN_ACK = 5; // for three-way handshake
+    // 6 and 7 are unused: path MTU probes are DATA and ACK packets flagged FLAG_PROBE
+    public static final int PARITY = 8; // XOR of a block of DATA segments, only sent when the session agreed to FEC (see FecEncoder)
 
-    // --- MTU Configuration ---
-    public static final int MTU = 1400;
-    public static final int HEADER_SIZE = 16; // Header Size: Type (4 bytes) + Sequence Number (8 bytes) + Payload Length (4 bytes)
-    public static final int MAX_PAYLOAD_SIZE = MTU - HEADER_SIZE;
+    // --- Header Flags (upper bits of the type field; only sent when the session agreed to them) ---
+    public static final int TYPE_MASK = 0xFFFF;
+    public static final int FLAG_COMPRESSED = 1 << 16; // DATA payload is one raw Deflate stream
+    public static final int FLAG_ACK_NOW = 1 << 17; // last DATA of a transfer: don't delay its ACK
+    public static final int FLAG_PROBE = 1 << 18; // path MTU probe DATA, padded to the size under test, and its echo (see PathMtu)
+    public static final int FLAG_PART = 1 << 19; // DATA carrying one part of a split segment (see SegmentParts)
+    public static final int FLAG_LAST_PART = 1 << 20;
+    public static final int PART_LEVEL_SHIFT = 21; // 2 bits: the segment was cut into parts of segmentSize / 2^level
+    public static final int PART_INDEX_SHIFT = 23; // 3 bits: which part this is
+
+    // --- MTU Configuration (datagram sizes; the segment size is agreed per session) ---
+    public static final int MTU = 1400; // default, and what peers without path MTU discovery always use
+    public static final int MIN_MTU = 1200; // floor when even the default size is black-holed
+    public static final int MAX_MTU = 8972; // a 9000-byte jumbo frame less the IPv4 and UDP headers
+    public static final int HEADER_SIZE = 24; // Header Size: Type (4 bytes) + Sequence Number (8 bytes) + Payload Length (4 bytes) + Session ID (4 bytes) + Checksum (4 bytes)
+    public static final int MAX_PAYLOAD_SIZE = MTU - HEADER_SIZE; // a DATA segment at the default MTU; a session's own is SessionOptions.getSegmentSize()
+    public static final int DEFAULT_SEGMENT_SIZE = MAX_PAYLOAD_SIZE;
+    public static final int MAX_DATAGRAM_PAYLOAD = MAX_MTU - HEADER_SIZE; // the most any datagram carries; receive buffers are sized for this
+
+    // --- Header Layout (byte offsets, shared with PacketView) ---
+    public static final int TYPE_OFFSET = 0;
+    public static final int SEQUENCE_OFFSET = 4;
+    public static final int LENGTH_OFFSET = 12;
+    public static final int SESSION_OFFSET = 16;
+    public static final int CHECKSUM_OFFSET = 20; // CRC32C of every other header byte and the payload
+
+    // CRC32C is a JDK intrinsic (SSE4.2 / ARMv8 CRC instructions); one instance per thread keeps it allocation-free
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
 
     // --- Packet Fields ---
-    private int messageType; // 4 bytes
+    private int messageType; // 4 bytes, shared with 'flags'
+    private int flags;
     private long sequenceNumber; // 8 bytes
     private int payloadLength; // 4 bytes
     private byte[] payload; // Variable length
+    private int sessionId; // 4 bytes
+    private ByteBuffer payloadBuffer; // Set instead of 'payload' for zero-copy packets
+    private ByteBuffer pooledBuffer; // The whole pool buffer behind 'payloadBuffer', until release()
+    private BufferPool pool;
 
     /**
      * Constructor for creating a new Packet
@@ -40,13 +75,26 @@ public class Packet {
      * @param payload The data payload to be sent
      */
     public Packet(int messageType, long sequenceNumber, byte[] payload) {
-        this.messageType = messageType;
+        this(messageType, sequenceNumber, 0, payload);
+    }
+
+    /**
+     * Constructor for creating a Packet that belongs to a session
+     * @param messageType The type of the message (SYN, DATA, ACK, FIN, ERROR), optionally OR'ed with header flags
+     * @param sequenceNumber The sequence number for ordering packets
+     * @param sessionId The session the packet belongs to, chosen by the client in its SYN
+     * @param payload The data payload to be sent
+     */
+    public Packet(int messageType, long sequenceNumber, int sessionId, byte[] payload) {
+        this.messageType = messageType & TYPE_MASK;
+        this.flags = messageType & ~TYPE_MASK;
         this.sequenceNumber = sequenceNumber;
+        this.sessionId = sessionId;
         if (payload == null) {
             this.payload = new byte[0];
         } else {
-            if (payload.length > MAX_PAYLOAD_SIZE) {
-                throw new IllegalArgumentException("Payload size " + payload.length + " exceeds limit of " + MAX_PAYLOAD_SIZE + " bytes.");
+            if (payload.length > MAX_DATAGRAM_PAYLOAD) {
+                throw new IllegalArgumentException("Payload size " + payload.length + " exceeds limit of " + MAX_DATAGRAM_PAYLOAD + " bytes.");
             }
             this.payload = Arrays.copyOf(payload, payload.length);
         }
@@ -54,53 +102,195 @@ public class Packet {
         this.payloadLength = this.payload.length;
 }
 
+    /**
+     * Creates a zero-copy Packet whose payload stays in the given buffer (e.g. a slice of a mapped file)
+     * @param messageType The type of the message (SYN, DATA, ACK, FIN, ERROR), optionally OR'ed with header flags
+     * @param sequenceNumber The sequence number for ordering packets
+     * @param sessionId The session the packet belongs to
+     * @param payload The bytes between position and limit; they must not change while the Packet is in use
+     */
+    public static Packet wrap(int messageType, long sequenceNumber, int sessionId, ByteBuffer payload) {
+        if (payload.remaining() > MAX_DATAGRAM_PAYLOAD) {
+            throw new IllegalArgumentException("Payload size " + payload.remaining() + " exceeds limit of " + MAX_DATAGRAM_PAYLOAD + " bytes.");
+        }
+        Packet packet = new Packet(null, messageType, sequenceNumber, sessionId);
+        packet.payloadBuffer = payload.slice();
+        packet.payloadLength = packet.payloadBuffer.remaining();
+        return packet;
+    }
+
+    /**
+     * Creates a Packet whose payload sits in a buffer taken from 'pool' (position to limit), e.g. a
+     * datagram the server dispatcher hands to a session. The Packet owns that buffer until release().
+     */
+    static Packet wrapPooled(int messageType, long sequenceNumber, int sessionId, ByteBuffer buffer, BufferPool pool) {
+        Packet packet = wrap(messageType, sequenceNumber, sessionId, buffer);
+        packet.pooledBuffer = buffer;
+        packet.pool = pool;
+        return packet;
+    }
+
+    // Decoder-only constructor (Packet and PacketView): takes ownership of an already-validated payload array instead of copying it
+    Packet(byte[] payload, int messageType, long sequenceNumber, int sessionId) {
+        this.messageType = messageType & TYPE_MASK;
+        this.flags = messageType & ~TYPE_MASK;
+        this.sequenceNumber = sequenceNumber;
+        this.sessionId = sessionId;
+        this.payload = payload;
+        this.payloadLength = (payload == null) ? 0 : payload.length;
+    }
+
     // Serialization: Convert Packet to byte array for transmission 
     public byte[] toByteArray() {
         ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
-        bb.putInt(messageType);
+        writeTo(bb);
+        return bb.array();
+    }
+
+    // Serialization into a caller-owned (e.g. pooled) buffer, starting at its position
+    public void writeTo(ByteBuffer bb) {
+        int start = bb.position();
+        bb.putInt(messageType | flags);
         bb.putLong(sequenceNumber);
         bb.putInt(payloadLength);
-        if (payloadLength > 0) {
+        bb.putInt(sessionId);
+        bb.putInt(0);
+        if (payloadBuffer != null) {
+            bb.put(bb.position(), payloadBuffer, 0, payloadLength);
+            bb.position(bb.position() + payloadLength);
+        } else if (payloadLength > 0) {
             bb.put(payload, 0, payloadLength);
         }
-        return bb.array();
+        bb.putInt(start + CHECKSUM_OFFSET, checksum(bb, start, HEADER_SIZE + payloadLength));
+    }
+
+    // CRC32C of the encoded packet at [offset, offset + length), skipping the checksum field itself.
+    // Leaves the buffer's position and limit as they were.
+    public static int checksum(ByteBuffer bb, int offset, int length) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        int position = bb.position();
+        int limit = bb.limit();
+        try {
+            bb.limit(offset + CHECKSUM_OFFSET).position(offset);
+            crc.update(bb);
+            bb.limit(offset + length).position(offset + HEADER_SIZE);
+            crc.update(bb);
+        } finally {
+            bb.limit(limit).position(position);
+        }
+        return (int) crc.getValue();
     }
 
     // Deserialization: Create Packet from byte array received 
     public static Packet fromByteArray(byte[] byteArray) {
-        if (byteArray.length < HEADER_SIZE) {
+        return fromByteArray(byteArray, 0, byteArray.length);
+    }
+
+    // Decodes only the 'length' bytes a datagram actually carried; a bad checksum is rejected
+    // like any other malformed packet (IllegalArgumentException)
+    public static Packet fromByteArray(byte[] byteArray, int offset, int length) {
+        if (length < HEADER_SIZE) {
             throw new IllegalArgumentException("Byte array too short to be a valid packet.");
         }
-        ByteBuffer bb = ByteBuffer.wrap(byteArray);
+        ByteBuffer bb = ByteBuffer.wrap(byteArray, offset, length);
         int messageType = bb.getInt();
         long sequenceNumber = bb.getLong();
         int payloadLength = bb.getInt();
-        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+        int sessionId = bb.getInt();
+        int checksum = bb.getInt();
+        if (payloadLength < 0 || payloadLength > MAX_DATAGRAM_PAYLOAD) {
             throw new IllegalArgumentException("Invalid payload length: " + payloadLength);
         }
-        if (byteArray.length < HEADER_SIZE + payloadLength) {
-            throw new IllegalArgumentException("Byte array too short for payload: expected " + (HEADER_SIZE + payloadLength) + ", got " + byteArray.length);
+        if (length < HEADER_SIZE + payloadLength) {
+            throw new IllegalArgumentException("Byte array too short for payload: expected " + (HEADER_SIZE + payloadLength) + ", got " + length);
+        }
+        if (checksum != checksum(bb, offset, HEADER_SIZE + payloadLength)) {
+            throw new IllegalArgumentException("Checksum mismatch");
         }
         byte[] payload = new byte[payloadLength];
         if (payloadLength > 0) {
             bb.get(payload);
         }
-        return new Packet(messageType, sequenceNumber, payload);
+        return new Packet(payload, messageType, sequenceNumber, sessionId);
     }
 
     // Getters for Packet Fields
     public int getMessageType() {
         return messageType;
     }  
+    public int getFlags() {
+        return flags;
+    }
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
     public long getSequenceNumber() {
         return sequenceNumber;
     }
     public int getPayloadLength() {
         return payloadLength;
     }
+    public int getSessionId() {
+        return sessionId;
+    }
     public byte[] getPayload() {
+        if (payloadBuffer != null) {
+            byte[] copy = new byte[payloadLength];
+            payloadBuffer.get(0, copy);
+            return copy;
+        }
         return Arrays.copyOf(payload, payloadLength);
     }
+    // Read-only view of the payload, without copying it
+    public ByteBuffer getPayloadBuffer() {
+        if (payloadBuffer != null) {
+            return payloadBuffer.asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(payload, 0, payloadLength).asReadOnlyBuffer();
+    }
+    // Writes the payload without the defensive copy made by getPayload()
+    public void writePayloadTo(OutputStream out) throws IOException {
+        if (payloadBuffer == null) {
+            out.write(payload, 0, payloadLength);
+        } else if (payloadBuffer.hasArray()) {
+            out.write(payloadBuffer.array(), payloadBuffer.arrayOffset(), payloadLength);
+        } else {
+            // Direct or mapped: a chunk at a time through this thread's scratch array
+            byte[] chunk = SCRATCH.get();
+            for (int done = 0; done < payloadLength; ) {
+                int n = Math.min(chunk.length, payloadLength - done);
+                payloadBuffer.get(done, chunk, 0, n);
+                out.write(chunk, 0, n);
+                done += n;
+            }
+        }
+    }
+
+    // --- Pooled Payloads ---
+    // A pooled packet's payload is only valid until release(); its header fields stay valid after.
+    // Whoever keeps the payload longer keeps detach() instead.
+
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    // This packet if it owns its payload, otherwise a copy that does
+    public Packet detach() {
+        if (pool == null) {
+            return this;
+        }
+        return new Packet(getPayload(), messageType | flags, sequenceNumber, sessionId);
+    }
+
+    // Gives a pooled payload's buffer back; does nothing for any other packet
+    public void release() {
+        if (pool != null) {
+            pool.release(pooledBuffer);
+            pool = null;
+            pooledBuffer = null;
+        }
+    }
 
     // Helper method to convert message type to string for debugging 
     public static String messageTypeToString(int messageType) {
@@ -111,6 +301,7 @@ public class Packet {
             case FIN: return "FIN";
             case ERROR: return "ERROR";
             case SYN_ACK: return "SYN_ACK";
+            case PARITY: return "PARITY";
             default: return "UNKNOWN";
         }
     }
@@ -121,6 +312,8 @@ public class Packet {
                 "messageType=" + messageTypeToString(messageType) +
                 ", sequenceNumber=" + sequenceNumber +
                 ", payloadLength=" + payloadLength +
+                ", sessionId=" + sessionId +
+                (flags != 0 ? ", flags=0x" + Integer.toHexString(flags >>> 16) : "") +
                 '}';
     }
 }
\ No newline at end of file
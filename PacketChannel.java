@@ -0,0 +1,39 @@
+/*
+ * One side of an established session, as seen by the transfer logic.
+ * - The client implements it directly over its Transport (PeerChannel)
+ * - The server implements it per session over the dispatcher's inbox (ServerSession)
+ * so SlidingWindowSender and ReceiveWindow don't care which end they run on.
+ */
+
+import java.io.*;
+
+public interface PacketChannel {
+
+    // Sends a packet to the peer of this session
+    void send(Packet packet) throws IOException;
+
+    // Returns the next packet for this session, or null if nothing arrived within the idle timeout.
+    // Its payload may only last until the next receive() (see Packet.detach).
+    Packet receive() throws IOException;
+
+    // Same, but waits at most timeoutMillis (e.g. until the next retransmission is due)
+    Packet receive(long timeoutMillis) throws IOException;
+
+    // Lets the transport queue the following sends and write them together on flush()
+    default void beginBatch() {
+    }
+
+    default void flush() throws IOException {
+    }
+
+    int getSessionId();
+
+    // Idle timeout, used when nothing is waiting to be retransmitted
+    int getTimeout();
+
+    // Per-session RTT estimator that drives every retransmission
+    RetransmissionTimer getRetransmissionTimer();
+
+    // Per-session counters, fed by the channel itself, SlidingWindowSender and ReceiveWindow
+    TransferMetrics getMetrics();
+}
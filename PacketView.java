@@ -0,0 +1,154 @@
+/*
+ * Flyweight view of one encoded packet inside a ByteBuffer (usually a pooled direct buffer).
+ * - Decoding reads header fields in place; nothing is copied until the caller asks for the payload
+ * - Encoding writes the header in place around a payload that is already in the buffer,
+ *   so a segment can be read from disk straight into its final position
+ * - One view can be re-pointed at a new buffer with wrap(), so steady-state use allocates nothing
+ * - wrap() rejects a datagram whose CRC32C doesn't match, the same way as a truncated one
+ * The wire format is the same as Packet.toByteArray(); the offsets live in Packet.
+ */
+
+import java.nio.ByteBuffer;
+
+public final class PacketView {
+    private ByteBuffer buffer;
+    private int offset;
+
+    // --- Decoding ---
+
+    // Points the view at the datagram between the buffer's position and limit
+    public PacketView wrap(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (length < Packet.HEADER_SIZE) {
+            throw new IllegalArgumentException("Byte array too short to be a valid packet.");
+        }
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        int payloadLength = getPayloadLength();
+        if (payloadLength < 0 || payloadLength > Packet.MAX_DATAGRAM_PAYLOAD) {
+            throw new IllegalArgumentException("Invalid payload length: " + payloadLength);
+        }
+        if (length < Packet.HEADER_SIZE + payloadLength) {
+            throw new IllegalArgumentException("Byte array too short for payload: expected " + (Packet.HEADER_SIZE + payloadLength) + ", got " + length);
+        }
+        if (getChecksum() != Packet.checksum(buffer, offset, Packet.HEADER_SIZE + payloadLength)) {
+            throw new IllegalArgumentException("Checksum mismatch");
+        }
+        return this;
+    }
+
+    public int getMessageType() {
+        return buffer.getInt(offset + Packet.TYPE_OFFSET) & Packet.TYPE_MASK;
+    }
+    public int getFlags() {
+        return buffer.getInt(offset + Packet.TYPE_OFFSET) & ~Packet.TYPE_MASK;
+    }
+    public long getSequenceNumber() {
+        return buffer.getLong(offset + Packet.SEQUENCE_OFFSET);
+    }
+    public int getPayloadLength() {
+        return buffer.getInt(offset + Packet.LENGTH_OFFSET);
+    }
+    public int getSessionId() {
+        return buffer.getInt(offset + Packet.SESSION_OFFSET);
+    }
+    public int getChecksum() {
+        return buffer.getInt(offset + Packet.CHECKSUM_OFFSET);
+    }
+
+    // Absolute index of the first payload byte in the underlying buffer
+    public int getPayloadOffset() {
+        return offset + Packet.HEADER_SIZE;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    // Copies the payload into dst at its position, without touching this view's buffer position
+    public void copyPayloadTo(ByteBuffer dst) {
+        int length = getPayloadLength();
+        dst.put(dst.position(), buffer, getPayloadOffset(), length);
+        dst.position(dst.position() + length);
+    }
+
+    public void copyPayloadTo(byte[] dst, int dstOffset) {
+        buffer.get(getPayloadOffset(), dst, dstOffset, getPayloadLength());
+    }
+
+    // Materializes a regular Packet, for code that still works with Packet objects
+    public Packet toPacket() {
+        byte[] payload = new byte[getPayloadLength()];
+        copyPayloadTo(payload, 0);
+        return new Packet(payload, getMessageType() | getFlags(), getSequenceNumber(), getSessionId());
+    }
+
+    // Same, with the payload copied into a buffer from 'pool' that the Packet owns until its release()
+    public Packet toPooledPacket(BufferPool pool) {
+        int length = getPayloadLength();
+        ByteBuffer owned = pool.acquire();
+        owned.put(0, buffer, getPayloadOffset(), length).limit(length);
+        return Packet.wrapPooled(getMessageType() | getFlags(), getSequenceNumber(), getSessionId(), owned, pool);
+    }
+
+    // --- Encoding ---
+
+    // Starts a packet at the buffer's position; the payload goes at getPayloadOffset()
+    public PacketView wrapForWrite(ByteBuffer buffer) {
+        if (buffer.remaining() < Packet.HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer too small for a packet header.");
+        }
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        return this;
+    }
+
+    // Writes the header in place and flips the buffer to [start, end of payload) ready for sending
+    public PacketView writeHeader(int messageType, long sequenceNumber, int sessionId, int payloadLength) {
+        if (payloadLength < 0 || payloadLength > Packet.MAX_DATAGRAM_PAYLOAD) {
+            throw new IllegalArgumentException("Payload size " + payloadLength + " exceeds limit of " + Packet.MAX_DATAGRAM_PAYLOAD + " bytes.");
+        }
+        buffer.putInt(offset + Packet.TYPE_OFFSET, messageType);
+        buffer.putLong(offset + Packet.SEQUENCE_OFFSET, sequenceNumber);
+        buffer.putInt(offset + Packet.LENGTH_OFFSET, payloadLength);
+        buffer.putInt(offset + Packet.SESSION_OFFSET, sessionId);
+        buffer.limit(offset + Packet.HEADER_SIZE + payloadLength);
+        buffer.position(offset);
+        buffer.putInt(offset + Packet.CHECKSUM_OFFSET, Packet.checksum(buffer, offset, Packet.HEADER_SIZE + payloadLength));
+        return this;
+    }
+
+    // Encodes a complete packet whose payload is copied from src (position to limit)
+    public PacketView encode(ByteBuffer target, int messageType, long sequenceNumber, int sessionId, ByteBuffer src) {
+        wrapForWrite(target);
+        int length = src.remaining();
+        if (target.capacity() - getPayloadOffset() < length) {
+            throw new IllegalArgumentException("Buffer too small for a " + length + " byte payload.");
+        }
+        target.position(getPayloadOffset());
+        target.put(src);
+        return writeHeader(messageType, sequenceNumber, sessionId, length);
+    }
+
+    // Encodes an existing Packet into target, e.g. a pooled buffer on the send path
+    public PacketView encode(ByteBuffer target, Packet packet) {
+        wrapForWrite(target);
+        packet.writeTo(target);
+        target.limit(target.position());
+        target.position(offset);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        if (buffer == null) {
+            return "PacketView{unbound}";
+        }
+        return "PacketView{" +
+                "messageType=" + Packet.messageTypeToString(getMessageType()) +
+                ", sequenceNumber=" + getSequenceNumber() +
+                ", payloadLength=" + getPayloadLength() +
+                ", sessionId=" + getSessionId() +
+                '}';
+    }
+}
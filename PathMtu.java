@@ -0,0 +1,174 @@
+/*
+ * Path MTU discovery for one server, done by the transfer layer itself (in the style of RFC 8899).
+ * - A probe is a DATA packet flagged FLAG_PROBE and padded to the datagram size under test; the
+ *   server answers with an ACK of the same size and flag, so one round trip proves the size in
+ *   both directions
+ * - Packet.MTU and every common link MTU up to the ceiling are probed at once, the unanswered ones
+ *   once more halfway through, and the largest answer wins. The whole search is bounded by
+ *   SEARCH_MILLIS, however many sizes are black-holed. A lost probe says nothing about
+ *   congestion, so it never touches a session's window
+ * - The ceiling is the smaller of setMaxMtu() and the outgoing interface's MTU: JDK 17 has no
+ *   portable Don't Fragment socket option, and without it the local stack would fragment
+ *   a probe bigger than the interface instead of dropping it
+ * - A server that answers a probe with ERROR (it predates probing) keeps the default size
+ * - A result is reused for RAISE_INTERVAL_MILLIS and then searched again. A session that
+ *   loses the server before a single DATA gets through, or has to split its segments (see
+ *   SegmentParts), drops the size back to Packet.MTU (or Packet.MIN_MTU if that was the size
+ *   in use): a black hole
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PathMtu {
+    public static final long RAISE_INTERVAL_MILLIS = 10 * 60 * 1000; // RFC 8899's PMTU_RAISE_TIMER
+    private static final long SEARCH_MILLIS = 500;
+    // Datagram sizes worth trying above the default: Ethernet, 4470-byte links, jumbo frames
+    private static final int[] CANDIDATES = {1472, 4442, Packet.MAX_MTU};
+    private static final ByteBuffer PADDING = ByteBuffer.allocate(Packet.MAX_DATAGRAM_PAYLOAD).asReadOnlyBuffer();
+
+    private final InetAddress address;
+    private final int port;
+    private int maxMtu = Packet.MAX_MTU;
+    private int current = Packet.MTU;
+    private boolean supported = true;
+    private long searchedAt;
+    private boolean searched = false;
+
+    public PathMtu(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    // Largest datagram to try; Packet.MTU turns probing off
+    public synchronized void setMaxMtu(int mtu) {
+        maxMtu = Math.max(Packet.MIN_MTU, Math.min(mtu, Packet.MAX_MTU));
+        current = Math.min(current, maxMtu);
+        searched = false;
+    }
+
+    // The datagram size to use for the next session, searching first if the last result is stale
+    public synchronized int discover(Transport transport) throws IOException {
+        if (supported && maxMtu > Packet.MTU
+                && (!searched || System.nanoTime() - searchedAt >= RAISE_INTERVAL_MILLIS * 1_000_000L)) {
+            search(transport);
+        }
+        return current;
+    }
+
+    public synchronized int getCurrent() {
+        return current;
+    }
+
+    // A session at 'mtu' got its handshake through but its full-size datagrams didn't: never a single
+    // DATA (or its ACK), or only once its segments were split
+    public synchronized void onBlackHole(int mtu) {
+        if (mtu < current) {
+            return; // already lowered by another session
+        }
+        current = (mtu > Packet.MTU) ? Packet.MTU : Packet.MIN_MTU;
+        searched = true;
+        searchedAt = System.nanoTime();
+        System.out.println("Full-size datagrams didn't get through at " + mtu + " bytes; using " + current + "-byte datagrams.");
+    }
+
+    // A probe (DATA) or its echo (ACK), flagged FLAG_PROBE, that fills a datagram of exactly 'size' bytes
+    public static Packet probePacket(int messageType, long sequenceNumber, int sessionId, int size) {
+        ByteBuffer padding = PADDING.duplicate();
+        padding.limit(size - Packet.HEADER_SIZE);
+        return Packet.wrap(messageType | Packet.FLAG_PROBE, sequenceNumber, sessionId, padding);
+    }
+
+    private void search(Transport transport) throws IOException {
+        PeerChannel channel = new PeerChannel(transport, address, port, ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+        List<Integer> sizes = sizesToTry();
+        int largest = sizes.get(sizes.size() - 1);
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + SEARCH_MILLIS * 1_000_000L;
+        long resendAt = startedAt + SEARCH_MILLIS * 500_000L;
+        int found = 0;
+        sendProbes(channel, sizes, found);
+        boolean resent = false;
+
+        long remaining;
+        while (found < largest && (remaining = (deadline - System.nanoTime()) / 1_000_000L) > 0) {
+            long wait = resent ? remaining : Math.max(1, (resendAt - System.nanoTime()) / 1_000_000L);
+            Packet response = channel.receive(Math.min(remaining, wait));
+            if (response == null) {
+                if (!resent && System.nanoTime() >= resendAt) {
+                    sendProbes(channel, sizes, found);
+                    resent = true;
+                }
+                continue;
+            }
+            if (response.getMessageType() == Packet.ERROR) {
+                supported = false;
+                found = Packet.MTU;
+                break;
+            }
+            int size = (int) response.getSequenceNumber();
+            if (response.getMessageType() == Packet.ACK && response.hasFlag(Packet.FLAG_PROBE)
+                    && sizes.contains(size) && response.getPayloadLength() == size - Packet.HEADER_SIZE) {
+                found = Math.max(found, size);
+            }
+        }
+        if (found == 0) {
+            found = current; // nothing answered at all: the server may just be slow, keep what we had
+        }
+        searched = true;
+        searchedAt = System.nanoTime();
+        if (found != current) {
+            System.out.println("Path MTU to " + address.getHostAddress() + ": " + found + " bytes.");
+        }
+        current = found;
+    }
+
+    // Every size above 'found', as one burst
+    private static void sendProbes(PeerChannel channel, List<Integer> sizes, int found) {
+        for (int size : sizes) {
+            if (size <= found) {
+                continue;
+            }
+            try {
+                channel.send(probePacket(Packet.DATA, size, channel.getSessionId(), size));
+            } catch (IOException e) {
+                // e.g. EMSGSIZE: the stack already knows the path is smaller
+            }
+        }
+    }
+
+    // Packet.MTU first (it also tells us whether the server answers probes), then every larger candidate
+    private List<Integer> sizesToTry() {
+        int ceiling = Math.min(maxMtu, interfaceLimit());
+        List<Integer> sizes = new ArrayList<>();
+        sizes.add(Packet.MTU);
+        for (int candidate : CANDIDATES) {
+            if (candidate > Packet.MTU && candidate < ceiling) {
+                sizes.add(candidate);
+            }
+        }
+        if (ceiling > Packet.MTU) {
+            sizes.add(ceiling);
+        }
+        return sizes;
+    }
+
+    // The outgoing interface's MTU less the IP and UDP headers, or MAX_MTU if it can't be found
+    private int interfaceLimit() {
+        try (DatagramSocket route = new DatagramSocket()) {
+            route.connect(address, port);
+            NetworkInterface nif = NetworkInterface.getByInetAddress(route.getLocalAddress());
+            if (nif != null && nif.getMTU() > 0) {
+                int headers = (address instanceof Inet6Address) ? 48 : 28;
+                return nif.getMTU() - headers;
+            }
+        } catch (IOException e) {
+            // Fall through to the configured ceiling
+        }
+        return Packet.MAX_MTU;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Client-side PacketChannel: a Transport bound to one server address and session.
+ * - Datagrams stamped with another session ID (e.g. stragglers from the
+ *   previous transfer), or sent from anywhere but the server's address and port,
+ *   are discarded instead of being handed to the caller (the same match as a SessionKey)
+ * - Every packet sent or accepted is counted in the session's TransferMetrics
+ */
+
+import java.io.*;
+import java.net.*;
+
+public class PeerChannel implements PacketChannel {
+    private final Transport transport;
+    private final InetAddress address;
+    private final int port;
+    private final InetSocketAddress peer; // built once, not per datagram
+    private final int sessionId;
+    private final RetransmissionTimer retransmissionTimer;
+    private final TransferMetrics metrics;
+    private final DatagramPacket incoming = new DatagramPacket(new byte[Packet.MAX_MTU], Packet.MAX_MTU);
+
+    public PeerChannel(Transport transport, InetAddress address, int port, int sessionId) {
+        this(transport, address, port, sessionId, null);
+    }
+
+    // 'totals' (may be null) also receives everything this session records
+    public PeerChannel(Transport transport, InetAddress address, int port, int sessionId, TransferMetrics totals) {
+        this.transport = transport;
+        this.address = address;
+        this.port = port;
+        this.peer = new InetSocketAddress(address, port);
+        this.sessionId = sessionId;
+        this.retransmissionTimer = transport.newRetransmissionTimer();
+        this.metrics = new TransferMetrics(totals);
+    }
+
+    @Override
+    public void send(Packet packet) throws IOException {
+        transport.sendPacket(packet, peer);
+        metrics.onPacketSent(Packet.HEADER_SIZE + packet.getPayloadLength());
+    }
+
+    @Override
+    public Packet receive() throws IOException {
+        return receive(transport.getTimeout());
+    }
+
+    @Override
+    public Packet receive(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            incoming.setLength(Packet.MAX_MTU);
+            Packet packet = transport.receivePacket(incoming, remaining);
+            if (packet == null) {
+                return null;
+            }
+            if (packet.getSessionId() == sessionId && incoming.getPort() == port && address.equals(incoming.getAddress())) {
+                metrics.onPacketReceived(Packet.HEADER_SIZE + packet.getPayloadLength());
+                return packet;
+            }
+        }
+    }
+
+    @Override
+    public void beginBatch() {
+        transport.beginBatch();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        transport.flush();
+    }
+
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public int getTimeout() {
+        return transport.getTimeout();
+    }
+
+    @Override
+    public RetransmissionTimer getRetransmissionTimer() {
+        return retransmissionTimer;
+    }
+
+    @Override
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+}
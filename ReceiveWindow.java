@@ -0,0 +1,292 @@
+/*
+ * Receiver half of the sliding window, shared by ReliableClient (downloads) and ReliableServer (uploads).
+ * - Segments inside the window are handed to a SegmentStore, which either buffers them
+ *   until they can be written in order or writes them straight to their file offset
+ * - Every DATA is answered with a cumulative ACK for the last in-order segment;
+ *   while there is a gap the ACK payload also carries SelectiveAck blocks for the segments
+ *   held beyond it (or, with a version 0 peer, names the out-of-order segment that just arrived)
+ * - With delayed ACKs agreed, a run of in-order segments is answered by one ACK after every
+ *   'ackEvery' segments or 'ackDelay' ms, whichever comes first. Anything else is ACKed at once:
+ *   duplicates, out-of-order segments, segments that fill a gap or leave one behind, segments
+ *   flagged FLAG_ACK_NOW, and the first window of the session (the sender's slow start)
+ * - Compressed segments are inflated before they reach the store
+ * - With "split" agreed, a segment sent in parts (see SegmentParts) is reassembled first; its
+ *   parts are not ACKed one by one
+ * - Segments are fed to a TransferDigest as the contiguous prefix grows, so the FIN's digest
+ *   can be checked without reading the file back; if one reached the store some other way the
+ *   digest is recomputed from the store when it is asked for
+ * - With FEC agreed, a PARITY packet that can rebuild a lost segment (see FecDecoder) hands it in
+ *   as if it had arrived, so the gap closes without a retransmission
+ * - A segment that can't be stored (it doesn't inflate, is larger than the agreed segment size, or is
+ *   a part the Assembler rejects) is counted as malformed and dropped without an ACK; the sender's
+ *   retransmission replaces it
+ * - Duplicates, out-of-order arrivals, malformed segments and newly stored payload are counted in the
+ *   attached TransferMetrics (see withMetrics)
+ */
+
+import java.io.*;
+
+public class ReceiveWindow {
+    private final SegmentStore store;
+    private final int windowSize;
+    private final long initialSeq;
+    private final long firstIndex; // the store's contiguous count when this window started
+    private final int sackVersion;
+    private final int segmentSize;
+
+    // Delayed ACKs: in-order segments not acknowledged yet, and when the ACK for them is due
+    private final int ackEvery;
+    private final long ackDelayNanos;
+    private int unacked;
+    private long ackDueAt;
+    private int quickAcks;
+    private int sessionId;
+
+    // Segments stored beyond the gap, indexed by (seq % windowSize), kept until the digest has seen them
+    private final Packet[] held;
+    private long highestSeq;
+    private final TransferDigest digest = new TransferDigest();
+    private boolean digestComplete = true; // false if a segment reached the store some other way
+    private TransferMetrics metrics = new TransferMetrics();
+    private final FecDecoder fec; // null without FEC
+    private final SegmentParts.Assembler parts; // null unless "split" was agreed
+
+    public ReceiveWindow(OutputStream out, SessionOptions options, long initialSeq) throws IOException {
+        this(new StreamSegmentStore(out), options, initialSeq);
+    }
+
+    public ReceiveWindow(SegmentStore store, SessionOptions options, long initialSeq) throws IOException {
+        this.store = store;
+        this.windowSize = options.getWindowSize();
+        this.initialSeq = initialSeq;
+        this.sackVersion = options.getSackVersion();
+        this.segmentSize = options.getSegmentSize();
+        // At least four ACKs per window, so the sender is never left waiting on the delay timer
+        this.ackEvery = Math.max(1, Math.min(options.getAckEvery(), windowSize / 4));
+        this.ackDelayNanos = options.getAckDelayMillis() * 1_000_000L;
+        this.quickAcks = windowSize;
+        this.held = new Packet[windowSize];
+        this.highestSeq = initialSeq - 1;
+        this.fec = (options.getFecBlock() > 0) ? new FecDecoder(windowSize) : null;
+        this.parts = options.canSplit() ? new SegmentParts.Assembler(segmentSize) : null;
+        this.firstIndex = store.contiguousCount();
+        store.digestPrefix(digest);
+    }
+
+    // Counts into the session's metrics instead of a private set
+    public ReceiveWindow withMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    // Consumes a DATA packet and returns the ACK that should be sent back, or null if it is delayed
+    public Packet onData(Packet packet) throws IOException {
+        long seq = packet.getSequenceNumber();
+        long expectedSeq = getExpectedSequence();
+        boolean ackNow = packet.hasFlag(Packet.FLAG_ACK_NOW);
+        sessionId = packet.getSessionId();
+        if (packet.hasFlag(Packet.FLAG_PART)) {
+            if (seq < expectedSeq) {
+                // Part of a segment we already have: its ACK was lost
+                metrics.onDuplicate();
+                unacked = 0;
+                return new Packet(Packet.ACK, expectedSeq - 1, sessionId, null);
+            }
+            if (parts == null) {
+                // Split was never agreed
+                metrics.onMalformed();
+                return null;
+            }
+            if (seq >= expectedSeq + windowSize) {
+                return null;
+            }
+            try {
+                packet = parts.add(packet, expectedSeq);
+            } catch (IllegalArgumentException e) {
+                metrics.onMalformed();
+                return null;
+            }
+            if (packet == null) {
+                return null;
+            }
+        }
+        // A pooled payload only lasts until the next receive: copy what outlives this call, i.e.
+        // segments held beyond the gap and everything FEC remembers
+        if (fec != null || seq > expectedSeq) {
+            packet = packet.detach();
+        }
+        boolean inWindow = seq >= expectedSeq && seq < expectedSeq + windowSize;
+        Packet segment = inWindow ? readSegment(packet) : null;
+        if (inWindow && segment == null) {
+            // Dropped unACKed (and kept from FEC); the sender's retransmission replaces it
+            metrics.onMalformed();
+            return null;
+        }
+        if (fec != null) {
+            fec.onData(packet);
+        }
+
+        if (inWindow) {
+            int wireLength = packet.getPayloadLength();
+            packet = segment;
+            if (store.store(seq - initialSeq, packet)) {
+                metrics.onDelivered(wireLength);
+                if (seq > expectedSeq) {
+                    metrics.onOutOfOrder();
+                }
+            } else {
+                metrics.onDuplicate();
+            }
+            held[slot(seq)] = packet;
+            highestSeq = Math.max(highestSeq, seq);
+            digestUpTo(getExpectedSequence(), expectedSeq);
+        } else if (seq < expectedSeq) {
+            // A duplicate; the cumulative ACK covers it
+            metrics.onDuplicate();
+        }
+
+        long cumulative = getExpectedSequence() - 1;
+        byte[] sack = null;
+        if (seq > cumulative && seq < cumulative + 1 + windowSize) {
+            // Stored (now or before), but there is still a gap in front of it
+            sack = selectiveAck(cumulative, seq).encode(cumulative, sackVersion);
+        }
+
+        // Only the next in-order segment, with nothing held beyond it, may wait for company
+        boolean inOrder = seq == expectedSeq && cumulative == seq && highestSeq == cumulative;
+        if (quickAcks > 0) {
+            quickAcks--;
+        } else if (inOrder && !ackNow && ++unacked < ackEvery) {
+            if (unacked == 1) {
+                ackDueAt = System.nanoTime() + ackDelayNanos;
+            }
+            return null;
+        }
+        unacked = 0;
+        return new Packet(Packet.ACK, cumulative, sessionId, sack);
+    }
+
+    // The segment as it goes to the store, or null if the packet can't hold one: a compressed payload
+    // that doesn't inflate, or more than the agreed segment size (it would run into the next segment's place)
+    private Packet readSegment(Packet packet) {
+        if (packet.hasFlag(Packet.FLAG_COMPRESSED)) {
+            try {
+                packet = SegmentCompressor.inflate(packet, segmentSize);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return (packet.getPayloadLength() <= segmentSize) ? packet : null;
+    }
+
+    // Consumes a PARITY packet; returns the ACK for the segment it rebuilt, or null if it rebuilt none
+    public Packet onParity(Packet parity) throws IOException {
+        if (fec == null) {
+            return null;
+        }
+        Packet rebuilt = fec.rebuild(parity, getExpectedSequence());
+        if (rebuilt == null) {
+            return null;
+        }
+        metrics.onRecovered();
+        return onData(rebuilt);
+    }
+
+    // The delayed ACK once its timer has run out, otherwise null
+    public Packet pollAck() {
+        if (unacked == 0 || System.nanoTime() - ackDueAt < 0) {
+            return null;
+        }
+        unacked = 0;
+        return new Packet(Packet.ACK, getExpectedSequence() - 1, sessionId, null);
+    }
+
+    public boolean hasPendingAck() {
+        return unacked > 0;
+    }
+
+    // How long the caller may wait for the next packet before pollAck() has to run
+    public long millisUntilAck(long idleMillis) {
+        if (unacked == 0) {
+            return idleMillis;
+        }
+        long millis = (ackDueAt - System.nanoTime() + 999_999) / 1_000_000L;
+        return Math.max(0, Math.min(idleMillis, millis));
+    }
+
+    // The runs of segments held beyond the gap; the run holding 'trigger' is always included
+    private SelectiveAck selectiveAck(long cumulative, long trigger) {
+        SelectiveAck sack = new SelectiveAck();
+        if (sackVersion == SelectiveAck.LEGACY) {
+            sack.add(trigger, trigger + 1);
+            return sack;
+        }
+
+        long last = Math.min(highestSeq, cumulative + windowSize);
+        long seq = cumulative + 2; // cumulative + 1 is the gap
+        while (seq <= last) {
+            if (!isHeld(seq)) {
+                seq++;
+                continue;
+            }
+            long start = seq;
+            while (seq <= last && isHeld(seq)) {
+                seq++;
+            }
+            // The last block stays free for the trigger's run until that run has been added
+            boolean triggerPending = trigger >= seq;
+            if (sack.getBlockCount() < SelectiveAck.MAX_BLOCKS - 1 || !triggerPending) {
+                if (!sack.add(start, seq)) {
+                    break;
+                }
+            }
+        }
+        return sack;
+    }
+
+    private boolean isHeld(long seq) {
+        Packet packet = held[slot(seq)];
+        return packet != null && packet.getSequenceNumber() == seq;
+    }
+
+    // Hashes the segments that just became contiguous, in order, and lets go of them
+    private void digestUpTo(long expectedSeq, long from) {
+        for (long seq = from; seq < expectedSeq; seq++) {
+            int slot = slot(seq);
+            if (isHeld(seq)) {
+                digest.update(held[slot].getPayloadBuffer());
+            } else {
+                digestComplete = false;
+            }
+            held[slot] = null;
+        }
+    }
+
+    // The SHA-256 of everything received so far; call once the transfer is complete. Null only if a
+    // segment bypassed the running digest and the store can't read it back, which callers treat as a mismatch.
+    public TransferDigest getDigest() throws IOException {
+        if (digestComplete) {
+            return digest;
+        }
+        TransferDigest reread = new TransferDigest();
+        store.digestPrefix(reread);
+        return store.digestSegments(reread, firstIndex, store.contiguousCount()) ? reread : null;
+    }
+
+    private int slot(long seq) {
+        return (int) Math.floorMod(seq, (long) windowSize);
+    }
+
+    public long getExpectedSequence() {
+        return initialSeq + store.contiguousCount();
+    }
+
+    // True if any segment arrived in parts, i.e. the sender found its full-size datagrams lost
+    public boolean receivedParts() {
+        return parts != null && parts.getAssembled() > 0;
+    }
+
+    public SegmentStore getStore() {
+        return store;
+    }
+}
@@ -10,212 +10,850 @@
 
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ReliableClient {
-    private SocketManager socketManager;
+    private Transport transport;
     private InetAddress serverAddress;
     private int serverPort;
     private static final int MAX_RETRIES = 5;
 
+    // Requested window parameters, and what the server actually agreed to
+    private SessionOptions requestedOptions = new SessionOptions()
+            .set(SessionOptions.WINDOW, 32)
+            .set(SessionOptions.MODE, SessionOptions.SELECTIVE_REPEAT)
+            .set(SessionOptions.SACK, SelectiveAck.VERSION)
+            .set(SessionOptions.ACK_EVERY, 4)
+            .set(SessionOptions.ACK_DELAY, SessionOptions.DEFAULT_ACK_DELAY_MILLIS);
+    private SessionOptions sessionOptions = new SessionOptions();
+
+    // The current session, keyed on the server by our address, port and session ID
+    private PeerChannel channel;
+
+    // Datagram size for new sessions, probed before the first one (see PathMtu)
+    private final PathMtu pathMtu;
+
+    // Totals over every session of this client; each PeerChannel has its own metrics adding into these
+    private final TransferMetrics metrics = new TransferMetrics();
+
+    private int syncThreads = Runtime.getRuntime().availableProcessors();
+
     public ReliableClient(String serverIp, int port) throws IOException {
         this.serverAddress = InetAddress.getByName(serverIp);
         this.serverPort = port;
-        this.socketManager = new SocketManager(0, 1000); 
+        this.transport = new SocketManager(0, 1000); 
+        this.pathMtu = new PathMtu(serverAddress, serverPort);
+    }
+
+    public ReliableClient(String serverIp, int port, Transport transport) throws IOException {
+        this.serverAddress = InetAddress.getByName(serverIp);
+        this.serverPort = port;
+        this.transport = transport;
+        this.pathMtu = new PathMtu(serverAddress, serverPort);
+    }
+
+    public void setWindowSize(int windowSize) {
+        requestedOptions.set(SessionOptions.WINDOW, windowSize);
+    }
+
+    public void setRecoveryMode(String mode) {
+        requestedOptions.set(SessionOptions.MODE, mode);
+    }
+
+    // Per-session congestion control: "aimd", "cubic" or "none"; the server picks if this is never called
+    public void setCongestionControl(String name) {
+        if (!CongestionControl.isKnown(name)) {
+            throw new IllegalArgumentException("Unknown congestion control: " + name);
+        }
+        requestedOptions.set(SessionOptions.CONGESTION, name.toLowerCase());
+    }
+
+    // Deflate level (1-9) for DATA in both directions, or 0 to send files as they are
+    public void setCompression(int level) {
+        if (level <= 0) {
+            requestedOptions.set(SessionOptions.COMPRESSION, "none");
+            return;
+        }
+        requestedOptions.set(SessionOptions.COMPRESSION, SegmentCompressor.DEFLATE);
+        requestedOptions.set(SessionOptions.COMPRESSION_LEVEL, level);
+    }
+
+    // Delayed ACKs in both directions: one ACK per 'every' in-order segments, held back at most
+    // 'delayMillis'; every <= 1 acknowledges each segment on its own
+    public void setDelayedAcks(int every, int delayMillis) {
+        requestedOptions.set(SessionOptions.ACK_EVERY, Math.max(1, every));
+        requestedOptions.set(SessionOptions.ACK_DELAY, delayMillis);
+    }
+
+    // Forward error correction in both directions: PARITY packets after every 'blockSize' DATA
+    // segments (capped at the window), so most losses are repaired without a retransmission;
+    // 0 turns it off. Worth it on lossy, high-RTT paths; elsewhere it only costs bandwidth
+    public void setFec(int blockSize) {
+        requestedOptions.set(SessionOptions.FEC, Math.max(0, blockSize));
+    }
+
+    // Threads that hash files for syncDirectory
+    public void setSyncThreads(int threads) {
+        syncThreads = Math.max(1, threads);
+    }
+
+    // Asks to move each file over this many parallel sessions; the server may agree to fewer
+    public void setStripes(int stripes) {
+        requestedOptions.set(SessionOptions.STRIPES, stripes);
+    }
+
+    // Largest datagram path MTU discovery may settle on (up to Packet.MAX_MTU); Packet.MTU turns it off
+    public void setMaxMtu(int mtu) {
+        pathMtu.setMaxMtu(mtu);
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    // The current (or last) session's metrics, or null before the first session
+    public TransferMetrics getSessionMetrics() {
+        return (channel != null) ? channel.getMetrics() : null;
     }
 
     // --- Session Establishment ---
     public boolean establishSession(String operation, String filename, long initialSeq) throws IOException {
+        return establishSession(operation, filename, initialSeq, requestedOptions);
+    }
+
+    private boolean establishSession(String operation, String filename, long initialSeq, SessionOptions options) throws IOException {
+        // Ask for segments that fill the largest datagram the path has carried (parity packets included),
+        // and offer to take them in parts should that size stop getting through
+        int mtu = pathMtu.discover(transport);
+        int parityHeader = (options.getFecBlock() > 0) ? FecEncoder.HEADER_SIZE : 0;
+        options = options.copy()
+                .set(SessionOptions.MTU, mtu)
+                .set(SessionOptions.SEGMENT, mtu - Packet.HEADER_SIZE - parityHeader)
+                .set(SessionOptions.SPLIT, 1);
+        channel = newChannel(transport);
+        SessionOptions agreed = handshake(channel, operation, filename, initialSeq, options);
+        if (agreed == null) {
+            return false;
+        }
+        sessionOptions = agreed;
+        return true;
+    }
+
+    private PeerChannel newChannel(Transport over) {
+        int sessionId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        return new PeerChannel(over, serverAddress, serverPort, sessionId, metrics);
+    }
+
+    // Returns the options the server agreed to, or null if it refused or never answered
+    private SessionOptions handshake(PeerChannel channel, String operation, String filename, long initialSeq, SessionOptions options) throws IOException {
         // [cite: 38, 39, 41] Initiate session with SYN and agree on parameters
-        String payload = operation + ":" + filename;
-        Packet synPacket = new Packet(Packet.SYN, initialSeq, payload.getBytes());
+        String payload = operation + ":" + filename + "\n" + options.encode();
+        Packet synPacket = new Packet(Packet.SYN, initialSeq, channel.getSessionId(), payload.getBytes());
+        RetransmissionTimer timer = channel.getRetransmissionTimer();
+        long firstSentAt = System.nanoTime();
         
         for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
             System.out.println("Sending SYN for " + operation + " (Attempt " + (attempt + 1) + ")");
-            socketManager.sendPacket(synPacket, serverAddress, serverPort);
+            long sentAt = System.nanoTime();
+            long deadline = sentAt + timer.getTimeout() * 1_000_000L;
+            channel.send(synPacket);
             
-            DatagramPacket incoming = new DatagramPacket(new byte[Packet.MTU], Packet.MTU);
-            Packet response = socketManager.receivePacket(incoming);
-            
-            if (response != null) {
+            // Wait out the whole RTO: early DATA (our SYN_ACK was lost) must not use up attempts
+            long remaining;
+            while ((remaining = (deadline - System.nanoTime()) / 1_000_000L) > 0) {
+                Packet response = channel.receive(remaining);
+                if (response == null) {
+                    break;
+                }
                 if (response.getMessageType() == Packet.SYN_ACK && response.getSequenceNumber() == initialSeq) {
-                    System.out.println("Session established via SYN_ACK.");
-                    return true;
+                    // Karn's rule: only the first SYN gives an unambiguous RTT sample
+                    if (attempt == 0) {
+                        timer.onSample(System.nanoTime() - sentAt);
+                        channel.getMetrics().onRttSample(System.nanoTime() - sentAt);
+                    }
+                    channel.getMetrics().onHandshake(System.nanoTime() - firstSentAt);
+                    // An empty SYN_ACK payload means the server only does stop-and-wait
+                    SessionOptions agreed = SessionOptions.parse(new String(response.getPayload()));
+                    System.out.println("Session established via SYN_ACK (window " + agreed.getWindowSize()
+                            + ", " + (agreed.isSelectiveRepeat() ? "Selective Repeat" : "Go-Back-N")
+                            + ", " + agreed.getCongestionControl()
+                            + ", " + agreed.getSegmentSize() + "-byte segments"
+                            + (agreed.getCompressionLevel() > 0 ? ", deflate " + agreed.getCompressionLevel() : "")
+                            + (agreed.getFecBlock() > 0 ? ", FEC every " + agreed.getFecBlock() + " segments" : "") + ").");
+                    return agreed;
                 } else if (response.getMessageType() == Packet.ERROR) {
                     System.out.println("Server Error: " + new String(response.getPayload()));
-                    return false;
+                    return null;
                 }
             }
+            timer.onTimeout();
         }
         System.out.println("Timeout: Failed to establish session after " + MAX_RETRIES + " attempts.");
-        return false;
+        return null;
     }
 
     // --- Upload Logic ---
-    public void uploadFile(String filename) {
+    // Each of these returns true once the server has confirmed the whole file (or stream) and its SHA-256
+    public boolean uploadFile(String filename) {
+        return upload(filename, false);
+    }
 
-        // [cite: 48, 53] Implement Upload sending logic
-        File file = new File(filename);
+    // Continues an interrupted upload from the server's checkpoint (starts over if it has none)
+    public boolean resumeUpload(String filename) {
+        return upload(filename, true);
+    }
 
-        // Create file from user input if it doesn't exist
-        if (!file.exists()) {
-            System.out.println("File '" + filename + "' not found. Creating a new one...");
-            System.out.print("Enter content for the new file: ");
-            Scanner sc = new Scanner(System.in);
-            String content = sc.nextLine();
-            
-            try (PrintWriter writer = new PrintWriter(file)) {
-                writer.print(content);
-                System.out.println("File created successfully.");
-            } catch (IOException e) {
-                System.err.println("Failed to create file: " + e.getMessage());
-                return;
+    // Uploads whatever 'source' yields until it reports end-of-stream, stored by the server as 'name'.
+    // The length needn't be known up front (a pipe, a database dump): the FIN marks the end. The source
+    // is only read as fast as the window drains. A stream can't be resumed or striped.
+    public boolean upload(String name, ReadableByteChannel source) {
+        SessionOptions options = requestedOptions.copy().set(SessionOptions.STRIPES, 1);
+        try {
+            if (!establishSession("UPLOAD", name, 0, options)) {
+                return false;
             }
+            SlidingWindowSender sender = new SlidingWindowSender(channel, sessionOptions, 0);
+            if (!sendAndClose(sender, SegmentSource.fromChannel(source, sessionOptions.getSegmentSize()), "Upload interrupted.")) {
+                return false;
+            }
+            System.out.println("Upload complete!");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error during upload: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean upload(String filename, boolean resume) {
+        // [cite: 48, 53] Implement Upload sending logic
+        File file = new File(filename);
+        if (!file.isFile()) {
+            System.out.println("File '" + filename + "' not found.");
+            return false;
         }
 
         long currentSeq = 0;
+        // Size and mtime let the server tell whether its checkpoint belongs to this version of the file
+        SessionOptions options = requestedOptions.copy()
+                .set(SessionOptions.SIZE, file.length())
+                .set(SessionOptions.MTIME, file.lastModified());
+        if (!resume && requestedOptions.getStripeCount() > 1) {
+            // Lets the server group the stripe sessions of this upload
+            options.set(SessionOptions.TRANSFER, Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        }
         
-        try (FileInputStream fis = new FileInputStream(filename)) {
-            if (!establishSession("UPLOAD", filename, currentSeq)) {
-                return;
-            }
-
-            byte[] buffer = new byte[Packet.MAX_PAYLOAD_SIZE];
-            int bytesRead;
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                // [cite: 48, 53] Truncate buffer to actual bytes read if it's the last chunk
-                byte[] payload = (bytesRead == Packet.MAX_PAYLOAD_SIZE) ? buffer : Arrays.copyOf(buffer, bytesRead);
-                Packet dataPacket = new Packet(Packet.DATA, currentSeq, payload);
-                
-                boolean ackReceived = false;
-                for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-                    socketManager.sendPacket(dataPacket, serverAddress, serverPort);
-                    
-                    DatagramPacket incoming = new DatagramPacket(new byte[Packet.MTU], Packet.MTU);
-                    Packet response = socketManager.receivePacket(incoming);
-                    
-                    // [cite: 44, 46] Handle ACKs for ordered delivery
-                    if (response != null && response.getMessageType() == Packet.ACK) {
-                        // [cite: 44, 46] Match server logic: The server ACKs with the CURRENT sequence number
-                        if (response.getSequenceNumber() == currentSeq) {
-                            ackReceived = true;
-                            currentSeq++;
-                            break;
-                        }
-                    } else if (response != null && response.getMessageType() == Packet.ERROR) {
-                        System.out.println("Server Error during transfer: " + new String(response.getPayload()));
-                        return;
-                    }
-                }
-                
-                if (!ackReceived) {
-                    System.out.println("Connection lost: Failed to receive ACK for seq " + currentSeq);
-                    return;
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (!establishSession(resume ? "RESUME:UPLOAD" : "UPLOAD", filename, currentSeq, options)) {
+                return false;
+            }
+
+            if (sessionOptions.getStripeCount() > 1) {
+                if (!uploadStripes(file, filename, currentSeq, options)) {
+                    return false;
                 }
+                System.out.println("Upload complete!");
+                return true;
+            }
+
+            // The server picks the (segment-aligned) offset; segment i keeps sequence number i
+            int segmentSize = sessionOptions.getSegmentSize();
+            long offset = sessionOptions.getLong(SessionOptions.OFFSET, 0);
+            if (offset > 0) {
+                System.out.println("Resuming upload at byte " + offset);
+                source.position(offset);
+            }
+
+            // [cite: 48, 53] Pipeline DATA segments through the agreed sliding window
+            SlidingWindowSender sender = new SlidingWindowSender(channel, sessionOptions, currentSeq + offset / segmentSize);
+            if (offset > 0) {
+                // The digest covers the whole file, including the part the server kept
+                sender.getDigest().update(file.toPath(), 0, offset);
+            }
+            if (!sendAndClose(sender, SegmentSource.fromChannel(source, segmentSize), "Upload interrupted; run resumeUpload to continue.")) {
+                return false;
             }
-            
-            closeSession(currentSeq);
             System.out.println("Upload complete!");
+            return true;
 
         } catch (IOException e) {
             System.err.println("Error during upload: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Sends every segment over the current session, then closes it with FIN
+    private boolean sendAndClose(SlidingWindowSender sender, SegmentSource segments, String interrupted) throws IOException {
+        if (!sender.transfer(segments)) {
+            if (!sender.anyAcked()) {
+                onBlackHole();
+            }
+            System.out.println(interrupted);
+            channel.getMetrics().close();
+            return false;
+        }
+        if (sender.getSplitLevel() > 0) {
+            onBlackHole();
+        }
+        return closeSession(channel, sender.getNextSequence(), sender.getDigest());
+    }
+
+    // Each stripe sends its range of segments as slices of one shared mapping of the file
+    private boolean uploadStripes(File file, String filename, long initialSeq, SessionOptions options) throws IOException {
+        List<StripeChannel> stripes = openStripes("UPLOAD", filename, initialSeq, options);
+        if (stripes == null) {
+            return false;
+        }
+        int segmentSize = sessionOptions.getSegmentSize();
+        MappedFile mapped = MappedFile.open(file, segmentSize);
+        long total = StripedTransfer.segmentCount(mapped.size(), segmentSize);
+        try {
+            return runStripes(stripes, (index, stripe) -> {
+                long first = StripedTransfer.firstSegment(total, stripes.size(), index);
+                long end = StripedTransfer.endSegment(total, stripes.size(), index);
+                SlidingWindowSender sender = new SlidingWindowSender(stripe.channel, stripe.options, initialSeq + first);
+                if (!sender.transfer(mapped.segments(segmentSize, first, end))) {
+                    if (!sender.anyAcked()) {
+                        onBlackHole();
+                    }
+                    return false;
+                }
+                if (sender.getSplitLevel() > 0) {
+                    onBlackHole();
+                }
+                return closeSession(stripe.channel, sender.getNextSequence(), sender.getDigest());
+            });
+        } finally {
+            mapped.release();
+        }
+    }
+
+    // --- Directory Sync ---
+    // Brings the server's "server_<name>" directory up to date with 'directory' in one session:
+    // the manifest of every file goes up, the server answers with the ones it is missing or that
+    // differ, and only those follow, packed back to back. Files are never deleted on the server.
+    public boolean syncDirectory(String directory) {
+        Path dir = Paths.get(directory).toAbsolutePath().normalize();
+        if (!Files.isDirectory(dir)) {
+            System.out.println("Directory '" + directory + "' not found.");
+            return false;
+        }
+        try {
+            long started = System.nanoTime();
+            SyncManifest manifest = SyncManifest.scan(dir, syncThreads);
+            System.out.println("Scanned " + manifest.size() + " files in " + (System.nanoTime() - started) / 1_000_000 + " ms.");
+
+            SessionOptions options = requestedOptions.copy().set(SessionOptions.STRIPES, 1);
+            if (!establishSession("SYNC", dir.getFileName().toString(), 0, options)) {
+                return false;
+            }
+            int segmentSize = sessionOptions.getSegmentSize();
+            try {
+                // 1. The manifest
+                SlidingWindowSender manifestSender = new SlidingWindowSender(channel, sessionOptions, 0);
+                if (!manifestSender.transfer(new ByteArrayInputStream(manifest.encode()))) {
+                    if (!manifestSender.anyAcked()) {
+                        onBlackHole();
+                    }
+                    System.out.println("Sync interrupted.");
+                    return false;
+                }
+                Packet confirmed = endPhase(manifestSender);
+                if (confirmed == null) {
+                    return false;
+                }
+
+                // 2. The server's answer: how many files it needs, then a bitmap of them
+                ByteArrayOutputStream answer = new ByteArrayOutputStream();
+                ReceiveWindow window = new ReceiveWindow(answer, sessionOptions, manifestSender.getNextSequence() + 1)
+                        .withMetrics(channel.getMetrics());
+                if (confirmed.getMessageType() != Packet.ACK) {
+                    Packet ack = (confirmed.getMessageType() == Packet.PARITY) ? window.onParity(confirmed) : window.onData(confirmed);
+                    if (ack != null) {
+                        channel.send(ack);
+                    }
+                }
+                if (!receiveUntilFin(channel, window, finSeq -> window.getExpectedSequence() == finSeq)) {
+                    return false;
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(answer.toByteArray());
+                int count = bytes.getInt();
+                BitSet changed = BitSet.valueOf(bytes);
+                if (changed.cardinality() != count || changed.length() > manifest.size()) {
+                    System.out.println("Sync failed: the server's answer doesn't fit the manifest.");
+                    return false;
+                }
+                System.out.println("Server needs " + count + " of " + manifest.size() + " files (" + manifest.bytes(changed) + " bytes).");
 
+                // 3. Just those files, back to back
+                SlidingWindowSender bundleSender = new SlidingWindowSender(channel, sessionOptions, window.getExpectedSequence() + 1);
+                try (ReadableByteChannel bundle = manifest.bundle(dir, changed)) {
+                    if (!sendAndClose(bundleSender, SegmentSource.fromChannel(bundle, segmentSize), "Sync interrupted.")) {
+                        return false;
+                    }
+                }
+                System.out.println("Sync complete!");
+                return true;
+            } finally {
+                channel.getMetrics().close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error during sync: " + e.getMessage());
+            return false;
         }
     }
 
     // --- Download Logic ---
-    public void downloadFile(String filename) {
+    public boolean downloadFile(String filename) {
         // [cite: 48, 53] Implement Download request
         long expectedSeq = 0; 
         
         // Prepend "client_" to avoid overwriting files if testing on the same machine
-        try (FileOutputStream fos = new FileOutputStream("client_" + filename)) {
-            if (!establishSession("DOWNLOAD", filename, expectedSeq)) {
-                return;
+        Path target = Paths.get("client_" + filename);
+
+        // A checkpoint from an interrupted download turns this into a RESUME
+        TransferCheckpoint saved = TransferCheckpoint.load(target);
+        SessionOptions options = requestedOptions;
+        if (saved != null) {
+            options = requestedOptions.copy()
+                    .set(SessionOptions.OFFSET, saved.resumeOffset(saved.getSourceSize(), saved.getSourceModified(), target))
+                    .set(SessionOptions.SIZE, saved.getSourceSize())
+                    .set(SessionOptions.MTIME, saved.getSourceModified());
+        }
+
+        try {
+            if (!establishSession(saved != null ? "RESUME:DOWNLOAD" : "DOWNLOAD", filename, expectedSeq, options)) {
+                return false;
+            }
+            if (sessionOptions.getStripeCount() > 1) {
+                if (!downloadStripes(filename, target, expectedSeq, options)) {
+                    return false;
+                }
+                System.out.println("Download complete!");
+                return true;
+            }
+        } catch (IOException e) {
+            System.err.println("Error during download: " + e.getMessage());
+            return false;
+        }
+
+        // The server answers with the offset it agreed to (0 if the file changed) and the file's identity
+        int segmentSize = sessionOptions.getSegmentSize();
+        long firstSegment = sessionOptions.getLong(SessionOptions.OFFSET, 0) / segmentSize;
+        if (firstSegment > 0) {
+            System.out.println("Resuming download at segment " + firstSegment);
+        }
+
+        try (SegmentFileWriter writer = new SegmentFileWriter(target, segmentSize, firstSegment)) {
+            if (sessionOptions.has(SessionOptions.SIZE) && sessionOptions.has(SessionOptions.MTIME)) {
+                writer.withCheckpoint(new TransferCheckpoint(target,
+                        sessionOptions.getLong(SessionOptions.SIZE, -1),
+                        sessionOptions.getLong(SessionOptions.MTIME, -1)));
             }
 
             System.out.println("Session established. Waiting to receive data...");
-            boolean downloading = true;
-
-            while (downloading) {
-                DatagramPacket incoming = new DatagramPacket(new byte[Packet.MTU], Packet.MTU);
-                Packet received = socketManager.receivePacket(incoming);
-
-                if (received == null) {
-                    continue; 
-                }
-
-                switch (received.getMessageType()) {
-                    case Packet.DATA:
-                        // [cite: 44, 46] Reassemble packets for ordered delivery
-                        if (received.getSequenceNumber() == expectedSeq) {
-                            fos.write(received.getPayload());
-                            
-                            // [cite: 44, 46] Send ACK for the sequence we just correctly received
-                            Packet ack = new Packet(Packet.ACK, expectedSeq, null);
-                            socketManager.sendPacket(ack, serverAddress, serverPort);
-                            
-                            expectedSeq++;
-                        } else {
-                            // [cite: 44, 46] If we got a duplicate/wrong packet, just ACK the last good sequence
-                            Packet ack = new Packet(Packet.ACK, received.getSequenceNumber(), null);
-                            socketManager.sendPacket(ack, serverAddress, serverPort);
-                        }
-                        break;
-                        
-                    case Packet.FIN:
-                        System.out.println("Received FIN from server. Closing session...");
-                        Packet finAck = new Packet(Packet.ACK, received.getSequenceNumber(), null);
-                        socketManager.sendPacket(finAck, serverAddress, serverPort);
-                        downloading = false;
-                        System.out.println("Download complete!");
-                        break;
-                        
-                    case Packet.ERROR:
-                        System.out.println("Server Error: " + new String(received.getPayload()));
-                        downloading = false;
-                        break;
-                }
+            ReceiveWindow window = new ReceiveWindow(writer, sessionOptions, expectedSeq).withMetrics(channel.getMetrics());
+            if (!receiveSegments(channel, window, finSeq -> writer.finish(finSeq - expectedSeq))) {
+                return false;
             }
+            System.out.println("Download complete!");
+            return true;
 
         } catch (IOException e) {
             System.err.println("File write error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes the server's file 'name' to 'sink', in order, as it arrives. A slow sink slows the
+    // server down rather than filling memory: early segments wait (at most a window of them) and
+    // the cumulative ACK only moves on once a segment is written. Nothing is checkpointed, so a
+    // stream can't be resumed, and it is never striped.
+    public boolean download(String name, WritableByteChannel sink) {
+        SessionOptions options = requestedOptions.copy().set(SessionOptions.STRIPES, 1);
+        try {
+            if (!establishSession("DOWNLOAD", name, 0, options)) {
+                return false;
+            }
+            ReceiveWindow window = new ReceiveWindow(new StreamSegmentStore(sink), sessionOptions, 0).withMetrics(channel.getMetrics());
+            if (!receiveSegments(channel, window, finSeq -> window.getExpectedSequence() == finSeq)) {
+                return false;
+            }
+            System.out.println("Download complete!");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error during download: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Every stripe writes its range straight into one shared file
+    private boolean downloadStripes(String filename, Path target, long initialSeq, SessionOptions options) throws IOException {
+        long size = sessionOptions.getLong(SessionOptions.SIZE, 0);
+        long modified = sessionOptions.getLong(SessionOptions.MTIME, -1);
+        int segmentSize = sessionOptions.getSegmentSize();
+        SegmentFileWriter writer = new SegmentFileWriter(target, segmentSize)
+                .withCheckpoint(new TransferCheckpoint(target, size, modified));
+        int stripeCount = sessionOptions.getStripeCount();
+        StripedTransfer transfer = new StripedTransfer(writer,
+                StripedTransfer.segmentCount(size, segmentSize), stripeCount, () -> {});
+
+        // Attach every stripe up front so the file stays open until the last one is done
+        List<StripedTransfer.Stripe> parts = new ArrayList<>();
+        for (int i = 0; i < stripeCount; i++) {
+            parts.add(transfer.attach(i));
+        }
+        try {
+            // The other stripes must ask for the same version of the file the first one got
+            List<StripeChannel> stripes = openStripes("DOWNLOAD", filename, initialSeq, options.copy()
+                    .set(SessionOptions.SIZE, size)
+                    .set(SessionOptions.MTIME, modified));
+            if (stripes == null) {
+                return false;
+            }
+            return runStripes(stripes, (index, stripe) -> {
+                StripedTransfer.Stripe part = parts.get(index);
+                ReceiveWindow window = new ReceiveWindow(part, stripe.options, initialSeq).withMetrics(stripe.channel.getMetrics());
+                return receiveSegments(stripe.channel, window, finSeq -> transfer.complete(part));
+            }) && transfer.isComplete();
+        } finally {
+            for (int i = 0; i < stripeCount; i++) {
+                transfer.release();
+            }
+        }
+    }
+
+    // Receives DATA into the window until the server's FIN; 'onFin' checks that nothing is missing
+    private boolean receiveSegments(PeerChannel channel, ReceiveWindow window, FinCheck onFin) throws IOException {
+        try {
+            return receiveUntilFin(channel, window, onFin);
+        } finally {
+            channel.getMetrics().close();
+        }
+    }
+
+    private boolean receiveUntilFin(PeerChannel channel, ReceiveWindow window, FinCheck onFin) throws IOException {
+        int idle = 0;
+        boolean anyData = false;
+
+        while (true) {
+            // A delayed ACK goes out when its timer runs out, so the wait below never outlasts it
+            Packet delayedAck = window.pollAck();
+            if (delayedAck != null) {
+                channel.send(delayedAck);
+            }
+            boolean ackPending = window.hasPendingAck();
+            Packet received = channel.receive(window.millisUntilAck(channel.getTimeout()));
+
+            if (received == null) {
+                if (ackPending) {
+                    continue;
+                }
+                // Give up after MAX_RETRIES silent timeouts; closing the writer leaves a checkpoint to resume from
+                if (++idle >= MAX_RETRIES) {
+                    if (!anyData) {
+                        onBlackHole();
+                    }
+                    System.out.println("Connection lost during download; run downloadFile again to resume.");
+                    return false;
+                }
+                continue; 
+            }
+            idle = 0;
+
+            switch (received.getMessageType()) {
+                case Packet.DATA:
+                    // [cite: 44, 46] Write each segment at its file offset as it arrives,
+                    // answering with a cumulative ACK for the last in-order sequence
+                    anyData = true;
+                    Packet ack = window.onData(received);
+                    if (ack != null) {
+                        channel.send(ack);
+                    }
+                    break;
+
+                case Packet.PARITY:
+                    // A segment rebuilt from parity is ACKed like one that arrived
+                    Packet repairAck = window.onParity(received);
+                    if (repairAck != null) {
+                        channel.send(repairAck);
+                    }
+                    break;
+                    
+                case Packet.FIN:
+                    System.out.println("Received FIN from server. Closing session...");
+                    // Check the server's SHA-256 before anything is finished, so a corrupt file is never completed
+                    TransferDigest digest = window.getDigest();
+                    if (digest == null || !digest.matches(received)) {
+                        System.out.println("Download corrupt: SHA-256 mismatch (got " + ((digest != null) ? TransferDigest.toHex(digest.finish()) : "none") + ").");
+                        window.getStore().abandon();
+                        channel.send(new Packet(Packet.ERROR, received.getSequenceNumber(), channel.getSessionId(), "Digest Mismatch".getBytes()));
+                        return false;
+                    }
+                    if (!onFin.isComplete(received.getSequenceNumber())) {
+                        System.out.println("Download incomplete: missing segments before FIN.");
+                        return false;
+                    }
+                    if (window.receivedParts()) {
+                        onBlackHole();
+                    }
+                    // The ACK carries our digest back so the server can confirm it too
+                    Packet finAck = new Packet(Packet.ACK, received.getSequenceNumber(), channel.getSessionId(), digest.finish());
+                    channel.send(finAck);
+                    return true;
+                    
+                case Packet.ERROR:
+                    System.out.println("Server Error: " + new String(received.getPayload()));
+                    return false;
+            }
+        }
+    }
+
+    // The handshake got through but full-size DATA didn't (none at all, or only once split into parts):
+    // the next session falls back to a smaller datagram
+    private void onBlackHole() {
+        pathMtu.onBlackHole(sessionOptions.getMtu());
+    }
+
+    private interface FinCheck {
+        boolean isComplete(long finSeq) throws IOException;
+    }
+
+    // --- Striping ---
+
+    // One stripe's session; stripe 0 is the client's own session, the others get a transport of their own
+    private static final class StripeChannel {
+        final Transport transport;
+        final PeerChannel channel;
+        final SessionOptions options;
+
+        StripeChannel(Transport transport, PeerChannel channel, SessionOptions options) {
+            this.transport = transport;
+            this.channel = channel;
+            this.options = options;
+        }
+    }
+
+    private interface StripeTask {
+        boolean run(int index, StripeChannel stripe) throws IOException;
+    }
+
+    // Opens stripes 1..n-1 after the server agreed to n stripes on the current session
+    private List<StripeChannel> openStripes(String operation, String filename, long initialSeq, SessionOptions options) throws IOException {
+        int stripeCount = sessionOptions.getStripeCount();
+        List<StripeChannel> stripes = new ArrayList<>();
+        stripes.add(new StripeChannel(null, channel, sessionOptions));
+        for (int i = 1; i < stripeCount; i++) {
+            Transport stripeTransport = transport.openEphemeral();
+            PeerChannel stripeChannel = newChannel(stripeTransport);
+            SessionOptions agreed = handshake(stripeChannel, operation, filename, initialSeq, options.copy()
+                    .set(SessionOptions.STRIPES, stripeCount)
+                    .set(SessionOptions.STRIPE, i)
+                    .set(SessionOptions.MTU, sessionOptions.getMtu())
+                    .set(SessionOptions.SEGMENT, sessionOptions.getSegmentSize())
+                    .set(SessionOptions.SPLIT, 1));
+            stripes.add(new StripeChannel(stripeTransport, stripeChannel, agreed));
+            if (agreed == null) {
+                closeStripes(stripes);
+                return null;
+            }
+        }
+        System.out.println("Transferring over " + stripeCount + " stripes.");
+        return stripes;
+    }
+
+    // Runs every stripe on its own thread; succeeds only if all of them do
+    private boolean runStripes(List<StripeChannel> stripes, StripeTask task) {
+        ExecutorService pool = Executors.newFixedThreadPool(stripes.size());
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < stripes.size(); i++) {
+                int index = i;
+                results.add(pool.submit(() -> task.run(index, stripes.get(index))));
+            }
+            boolean success = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    success &= result.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Stripe failed: " + e.getCause().getMessage());
+                    success = false;
+                }
+            }
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pool.shutdownNow();
+            closeStripes(stripes);
+        }
+    }
+
+    private void closeStripes(List<StripeChannel> stripes) {
+        for (StripeChannel stripe : stripes) {
+            if (stripe.transport != null) {
+                stripe.transport.close();
+            }
         }
     }
 
     // --- Session Termination ---
-    private void closeSession(long currentSeq) throws IOException {
+    // The FIN carries the SHA-256 of what we sent; the server's ACK carries what it received
+    private boolean closeSession(PeerChannel channel, long currentSeq, TransferDigest digest) throws IOException {
+        try {
+            return exchangeFin(channel, currentSeq, digest);
+        } finally {
+            // Stops the session's goodput clock
+            channel.getMetrics().close();
+        }
+    }
+
+    private boolean exchangeFin(PeerChannel channel, long currentSeq, TransferDigest digest) throws IOException {
         // [cite: 63, 64] Implement clean close via FIN/FIN-ACK exchange
-        Packet finPacket = new Packet(Packet.FIN, currentSeq, null);
+        Packet finPacket = new Packet(Packet.FIN, currentSeq, channel.getSessionId(), digest.finish());
         
-        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-            socketManager.sendPacket(finPacket, serverAddress, serverPort);
-            DatagramPacket incoming = new DatagramPacket(new byte[Packet.MTU], Packet.MTU);
-            Packet response = socketManager.receivePacket(incoming);
+        RetransmissionTimer timer = channel.getRetransmissionTimer();
+        int attempt = 0;
+        channel.send(finPacket);
+        while (attempt < MAX_RETRIES) {
+            Packet response = channel.receive(timer.getTimeout());
             
-            if (response != null && response.getMessageType() == Packet.ACK) {
+            if (response == null) {
+                attempt++;
+                timer.onTimeout();
+                channel.send(finPacket);
+            } else if (response.getMessageType() == Packet.ACK && response.getSequenceNumber() == currentSeq) {
+                // Late ACKs for DATA may still be in flight; only the FIN's own ACK closes the session
+                if (!digest.matches(response)) {
+                    System.out.println("Upload corrupt: server's SHA-256 differs from ours (" + TransferDigest.toHex(digest.finish()) + ").");
+                    return false;
+                }
                 System.out.println("Session closed cleanly.");
-                return;
+                return true;
+            } else if (response.getMessageType() == Packet.ERROR) {
+                System.out.println("Server Error: " + new String(response.getPayload()));
+                return false;
+            }
+        }
+        System.out.println("Timeout waiting for FIN_ACK. Terminating locally.");
+        return false;
+    }
+
+    // Ends a phase of a multi-phase session: FIN until the server ACKs it, or shows it got it by
+    // starting the next phase, whose first DATA (or PARITY) is returned so it isn't lost
+    private Packet endPhase(SlidingWindowSender sender) throws IOException {
+        long finSeq = sender.getNextSequence();
+        Packet finPacket = new Packet(Packet.FIN, finSeq, channel.getSessionId(), sender.getDigest().finish());
+        RetransmissionTimer timer = channel.getRetransmissionTimer();
+        int attempt = 0;
+        channel.send(finPacket);
+        while (attempt < MAX_RETRIES) {
+            Packet response = channel.receive(timer.getTimeout());
+            if (response == null) {
+                attempt++;
+                timer.onTimeout();
+                channel.send(finPacket);
+                continue;
+            }
+            int type = response.getMessageType();
+            if (type == Packet.ACK && response.getSequenceNumber() == finSeq) {
+                if (!sender.getDigest().matches(response)) {
+                    System.out.println("Sync corrupt: server's SHA-256 differs from ours.");
+                    return null;
+                }
+                return response;
+            } else if ((type == Packet.DATA || type == Packet.PARITY) && response.getSequenceNumber() > finSeq) {
+                return response;
+            } else if (type == Packet.ERROR) {
+                System.out.println("Server Error: " + new String(response.getPayload()));
+                return null;
             }
         }
         System.out.println("Timeout waiting for FIN_ACK. Terminating locally.");
+        return null;
     }
 
     // --- Main Driver ---
+    // Usage: java ReliableClient [upload|resume|download] [file] [host] [port]
+    //        java ReliableClient upload-stdin|download-stdout <name> [host] [port]
+    //        java ReliableClient sync <directory> [host] [port]
+    // With no arguments it uploads test.txt to 127.0.0.1:12345. The exit status is 0 on success.
     public static void main(String[] args) {
+        String operation = args.length > 0 ? args[0].toLowerCase() : "upload";
+        String filename = args.length > 1 ? args[1] : "test.txt";
+        String host = args.length > 2 ? args[2] : "127.0.0.1";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 12345;
+
+        // Standard output carries the data, so progress messages go to standard error
+        WritableByteChannel stdout = null;
+        if (operation.equals("download-stdout")) {
+            stdout = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+            System.setOut(System.err);
+        }
+
+        boolean success = false;
         try {
-            ReliableClient client = new ReliableClient("127.0.0.1", 12345);
-            
-            // Uncomment to test Upload
-            client.uploadFile("test.txt"); 
-            
-            // Uncomment to test Download
-            // client.downloadFile("test.txt");
-            
+            ReliableClient client = new ReliableClient(host, port);
+            switch (operation) {
+                case "upload":
+                case "resume":
+                    if (!new File(filename).exists() && !createFile(filename)) {
+                        break;
+                    }
+                    success = operation.equals("upload") ? client.uploadFile(filename) : client.resumeUpload(filename);
+                    break;
+                case "download":
+                    success = client.downloadFile(filename);
+                    break;
+                case "sync":
+                    success = client.syncDirectory(filename);
+                    break;
+                case "upload-stdin":
+                    success = client.upload(filename, Channels.newChannel(System.in));
+                    break;
+                case "download-stdout":
+                    success = client.download(filename, stdout);
+                    break;
+                default:
+                    System.err.println("Unknown operation: " + operation);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        System.exit(success ? 0 : 1);
+    }
+
+    // Create file from user input if it doesn't exist
+    private static boolean createFile(String filename) {
+        System.out.println("File '" + filename + "' not found. Creating a new one...");
+        System.out.print("Enter content for the new file: ");
+        Scanner sc = new Scanner(System.in);
+        String content = sc.nextLine();
+
+        try (PrintWriter writer = new PrintWriter(filename)) {
+            writer.print(content);
+            System.out.println("File created successfully.");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to create file: " + e.getMessage());
+            return false;
+        }
     }
-}
\ No newline at end of file
+}
@@ -10,155 +10,217 @@
 
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReliableServer {
-    private SocketManager socketManager;
-    private boolean running = true;
-    private long expectedSequenceNumber = 0;
-    private FileOutputStream fileOutputStream = null;
+    private static final int DEFAULT_WORKERS = 256;
+    private static final AtomicInteger SERVER_IDS = new AtomicInteger();
+    private static final int INBOX_POOL_SIZE = 256;
+
+    private Transport transport;
+    private volatile boolean running = true;
+
+    // Receive shards: 'transport' first, then any more sockets on its port (see setShards), each
+    // read by its own dispatcher thread. The kernel sends all of a client flow's datagrams to one
+    // shard, so a session is only ever fed by one dispatcher and answers from the socket it uses.
+    private final List<Transport> shards = new ArrayList<>();
+
+    // Session table: every datagram is routed by (address, port, session id)
+    private final Map<SessionKey, ServerSession> sessions = new ConcurrentHashMap<>();
+    // One reusable lookup key per receive thread (see SessionKey.lookup)
+    private final ThreadLocal<SessionKey> lookupKeys = ThreadLocal.withInitial(SessionKey::lookup);
+    // Striped uploads in progress, shared by the sessions of their stripes
+    private final Map<String, StripedTransfer> stripedUploads = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    // Payload buffers for the packets handed to sessions; heap, so one a session never releases is just garbage
+    private final BufferPool inboxPool = new BufferPool(INBOX_POOL_SIZE, Packet.MAX_DATAGRAM_PAYLOAD, false);
+    private volatile String congestionControl = CongestionControl.CUBIC;
+    private volatile int maxMtu = Packet.MAX_MTU;
+    private volatile SegmentCache fileCache = new SegmentCache(SegmentCache.DEFAULT_BUDGET, SegmentCache.TINY_LFU);
+
+    // Totals over every session; each session's own metrics add into these (see TransferMetrics)
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final String metricsName = "server-" + SERVER_IDS.incrementAndGet();
 
     public ReliableServer(int port) throws SocketException {
-        this.socketManager = new SocketManager(port, 2000); 
+        this(port, DEFAULT_WORKERS);
+    }
+
+    public ReliableServer(int port, int workerThreads) throws SocketException {
+        this(new SocketManager(port, 2000), workerThreads);
+    }
+
+    public ReliableServer(Transport transport, int workerThreads) {
+        this.transport = transport;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.shards.add(transport);
+    }
+
+    // Reads the port from 'count' sockets, one dispatcher thread each, so receiving isn't limited
+    // to one core. The transport must have been opened with SO_REUSEPORT; call before start().
+    public void setShards(int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + count);
+        }
+        while (shards.size() < count) {
+            shards.add(transport.openShard());
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    // Algorithm for sessions whose client doesn't ask for one (see CongestionControl)
+    public void setCongestionControl(String name) {
+        if (!CongestionControl.isKnown(name)) {
+            throw new IllegalArgumentException("Unknown congestion control: " + name);
+        }
+        this.congestionControl = name.toLowerCase();
+    }
+
+    // Largest datagram we answer probes for and agree segments to; Packet.MTU keeps every session at the default
+    public void setMaxMtu(int mtu) {
+        this.maxMtu = Math.max(Packet.MIN_MTU, Math.min(mtu, Packet.MAX_MTU));
+    }
+
+    // In-memory cache for downloads: 'budgetBytes' of hot files, evicted by "lru" or "tinylfu"; 0 turns it off.
+    // Sessions already running keep the cache they started with.
+    public void setFileCache(long budgetBytes, String policy) {
+        this.fileCache = (budgetBytes > 0) ? new SegmentCache(budgetBytes, policy) : null;
+    }
+
+    // Null when caching is off
+    public SegmentCache getFileCache() {
+        return fileCache;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Prints a one-line snapshot of the totals every 'periodMillis'; cancel the future to stop
+    public ScheduledFuture<?> reportMetrics(long periodMillis) {
+        return metrics.reportEvery(periodMillis, snapshot -> System.out.println("Server metrics: "
+                + getActiveSessionCount() + " active sessions, " + snapshot));
     }
 
     public void start() {
-        System.out.println("Reliable UDP Server started on port...");
-        
+        System.out.println("Reliable UDP Server started on port..." + (shards.size() > 1 ? " (" + shards.size() + " receive shards)" : ""));
+        // JMX: "ReliableUdp:type=Server" for the session totals, "type=Transport" for each socket
+        metrics.register("Server", metricsName);
+        for (int i = 0; i < shards.size(); i++) {
+            TransferMetrics transportMetrics = transportMetrics(shards.get(i));
+            if (transportMetrics != null) {
+                transportMetrics.register("Transport", (i == 0) ? metricsName : metricsName + "-shard" + i);
+            }
+        }
+
+        // Shard 0 is read on the calling thread, the others on their own
+        for (int i = 1; i < shards.size(); i++) {
+            Transport shard = shards.get(i);
+            Thread dispatcher = new Thread(() -> receiveLoop(shard), "dispatcher-" + metricsName + "-" + i);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+        receiveLoop(transport);
+    }
+
+    private void receiveLoop(Transport shard) {
+        // Each wakeup hands over every datagram that is ready; only routed packets are copied out
+        Transport.ReceiveHandler dispatcher = (packet, source) -> dispatch(shard, packet, source);
         while (running) {
             try {
-                byte[] buffer = new byte[Packet.MTU];
-                DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
-                Packet received = socketManager.receivePacket(incoming);
-                
-                if (received != null) {
-                    processPacket(received, incoming.getAddress(), incoming.getPort());
-                }
+                shard.receiveBatch(dispatcher, shard.getTimeout());
             } catch (IOException e) {
-                System.err.println("Error receiving packet: " + e.getMessage());
+                if (running) {
+                    System.err.println("Error receiving packet: " + e.getMessage());
+                }
             }
         }
     }
 
-    private void processPacket(Packet packet, InetAddress clientAddr, int clientPort) throws IOException {
-        switch (packet.getMessageType()) {
-            case Packet.SYN:
-                handleHandshake(packet, clientAddr, clientPort);
-                break;
-            case Packet.DATA:
-                handleDataTransfer(packet, clientAddr, clientPort);
-                break;
-            case Packet.FIN:
-                handleTermination(packet, clientAddr, clientPort);
-                break;
-            default:
-                System.out.println("Received unexpected packet type: " + packet.getMessageType());
+    public void stop() {
+        running = false;
+        workers.shutdownNow();
+        metrics.close();
+        for (Transport shard : shards) {
+            shard.close();
+            TransferMetrics transportMetrics = transportMetrics(shard);
+            if (transportMetrics != null) {
+                transportMetrics.close();
+            }
         }
     }
 
-    private void handleHandshake(Packet packet, InetAddress addr, int port) throws IOException {
-        // [cite: 40, 41] Server acknowledges session and agrees on sequence number
-        System.out.println("Received SYN. Initializing session...");
-        this.expectedSequenceNumber = packet.getSequenceNumber(); 
-        
-        String payload = new String(packet.getPayload()).trim();
-        String[] parts = payload.split(":", 2);
-        String command = parts.length > 0 ? parts[0] : "";
-        String filename = parts.length > 1 ? parts[1] : "default.bin";
-
-        if (command.equals("UPLOAD")) {
-            this.fileOutputStream = new FileOutputStream("server_" + filename);
-            Packet synAck = new Packet(Packet.SYN_ACK, expectedSequenceNumber, null);
-            socketManager.sendPacket(synAck, addr, port);
-        } else if (command.equals("DOWNLOAD")) {
-            File file = new File(filename);
-            if (!file.exists()) {
-                Packet error = new Packet(Packet.ERROR, 0, "File Not Found".getBytes());
-                socketManager.sendPacket(error, addr, port);
-                return;
-            }
-            Packet synAck = new Packet(Packet.SYN_ACK, expectedSequenceNumber, null);
-            socketManager.sendPacket(synAck, addr, port);
-            
-            // Start sending the file data for download requests
-            sendFile(file, addr, port);
-        } else {
-            Packet synAck = new Packet(Packet.SYN_ACK, expectedSequenceNumber, null);
-            socketManager.sendPacket(synAck, addr, port);
+    // Null for transports that don't count (e.g. a LinkEmulator in tests)
+    private static TransferMetrics transportMetrics(Transport transport) {
+        if (transport instanceof SocketManager) {
+            return ((SocketManager) transport).getMetrics();
+        }
+        if (transport instanceof NioTransport) {
+            return ((NioTransport) transport).getMetrics();
         }
+        return null;
     }
 
-    private void handleDataTransfer(Packet packet, InetAddress addr, int port) throws IOException {
-        if (packet.getSequenceNumber() == expectedSequenceNumber) {
-            System.out.println("Received expected DATA: " + packet.getSequenceNumber());
+    public int getActiveSessionCount() {
+        return sessions.size();
+    }
+
+    private void dispatch(Transport transport, PacketView packet, InetSocketAddress source) throws IOException {
+        SessionKey lookup = lookupKeys.get().set(source.getAddress(), source.getPort(), packet.getSessionId());
+        ServerSession session = sessions.get(lookup);
 
-            // Write the payload to our stored file correctly
-            if (fileOutputStream != null) {
-                fileOutputStream.write(packet.getPayload());
+        if (packet.getMessageType() == Packet.DATA && (packet.getFlags() & Packet.FLAG_PROBE) != 0) {
+            // Path MTU probes need no session: echo them at the same size, unless they are bigger than we allow
+            int size = Packet.HEADER_SIZE + packet.getPayloadLength();
+            if (size <= maxMtu) {
+                transport.sendPacket(PathMtu.probePacket(Packet.ACK, packet.getSequenceNumber(), packet.getSessionId(), size), source);
+            }
+        } else if (session != null) {
+            session.deliver(packet.toPooledPacket(inboxPool));
+        } else if (packet.getMessageType() == Packet.SYN) {
+            // [cite: 40, 41] New session: its worker thread answers the SYN
+            SessionKey key = lookup.copy();
+            session = new ServerSession(transport, key, packet.toPacket(), () -> sessions.remove(key), stripedUploads, congestionControl,
+                    maxMtu, fileCache, metrics);
+            sessions.put(key, session);
+            workers.execute(session);
+        } else if (packet.getMessageType() != Packet.ERROR) {
+            // [cite: 60, 61] Nothing is registered for this client and session id
+            if (Log.isDebug()) {
+                Log.debug("Session mismatch from " + lookup + ": " + packet);
             }
-            
-            Packet ack = new Packet(Packet.ACK, expectedSequenceNumber, null);
-            socketManager.sendPacket(ack, addr, port);
-            expectedSequenceNumber++;
-        } else {
-            System.out.println("Sequence mismatch. Expected: " + expectedSequenceNumber);
-            Packet ack = new Packet(Packet.ACK, expectedSequenceNumber, null);
-            socketManager.sendPacket(ack, addr, port);
+            Packet error = new Packet(Packet.ERROR, packet.getSequenceNumber(), packet.getSessionId(), "Session Mismatch".getBytes());
+            transport.sendPacket(error, source);
         }
     }
 
-    private void handleTermination(Packet packet, InetAddress addr, int port) throws IOException {
-        System.out.println("Received FIN. Closing session...");
-        if (fileOutputStream != null) {
-            fileOutputStream.close();
-            fileOutputStream = null;
+    public static void main(String[] args) throws IOException {
+        // Pass "nio" to serve from a non-blocking DatagramChannel instead of a DatagramSocket,
+        // optionally a congestion control algorithm: "aimd", "cubic" or "none",
+        // a period in seconds for printing metrics (0 for none), and a number of receive shards.
+        // Add -Drudp.log=debug for per-packet logging.
+        boolean nio = args.length > 0 && args[0].equalsIgnoreCase("nio");
+        int shardCount = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        boolean reusePort = shardCount > 1;
+        Transport transport = nio ? new NioTransport(12345, 2000, reusePort) : new SocketManager(12345, 2000, reusePort);
+        ReliableServer server = new ReliableServer(transport, DEFAULT_WORKERS);
+        server.setShards(shardCount);
+        if (args.length > 1) {
+            server.setCongestionControl(args[1]);
         }
-        Packet finAck = new Packet(Packet.ACK, packet.getSequenceNumber(), null);
-        socketManager.sendPacket(finAck, addr, port);
-
-    }
-
-    private void sendFile(File file, InetAddress addr, int port) {
-        long currentSeq = expectedSequenceNumber; 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[Packet.MAX_PAYLOAD_SIZE];
-            int bytesRead;
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] payload = Arrays.copyOf(buffer, bytesRead);
-                Packet dataPacket = new Packet(Packet.DATA, currentSeq, payload);
-                
-                boolean ackReceived = false;
-                for (int attempt = 0; attempt < 5; attempt++) {
-                    socketManager.sendPacket(dataPacket, addr, port);
-                    
-                    DatagramPacket incoming = new DatagramPacket(new byte[Packet.MTU], Packet.MTU);
-                    Packet response = socketManager.receivePacket(incoming);
-                    
-                    if (response != null && response.getMessageType() == Packet.ACK) {
-                        if (response.getSequenceNumber() == currentSeq) {
-                            ackReceived = true;
-                            currentSeq++;
-                            break;
-                        }
-                    }
-                }
-                if (!ackReceived) {
-                    System.out.println("Client disconnected during download.");
-                    return;
-                }
-            }
-            
-            Packet finPacket = new Packet(Packet.FIN, currentSeq, null);
-            socketManager.sendPacket(finPacket, addr, port);
-            
-        } catch (IOException e) {
-            System.err.println("Error sending file: " + e.getMessage());
+        if (args.length > 2 && Long.parseLong(args[2]) > 0) {
+            server.reportMetrics(Long.parseLong(args[2]) * 1000);
         }
-    }
-
-    public static void main(String[] args) throws SocketException {
-        ReliableServer server = new ReliableServer(12345);
         server.start();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,75 @@
+/*
+ * Adaptive retransmission timer (Jacobson/Karels estimator with Karn's rule), one per session.
+ * - SRTT and RTTVAR are smoothed from RTT samples: RTO = SRTT + 4 * RTTVAR
+ * - Karn's rule: callers must not sample a segment that was ever retransmitted,
+ *   since its ACK can't be matched to one particular transmission
+ * - Every timeout doubles the RTO (exponential backoff) until a fresh sample arrives
+ * - The RTO is always clamped to [minTimeout, maxTimeout]
+ */
+
+public class RetransmissionTimer {
+    private static final double ALPHA = 1.0 / 8; // SRTT gain
+    private static final double BETA = 1.0 / 4;  // RTTVAR gain
+    private static final int K = 4;
+    private static final double CLOCK_GRANULARITY_MILLIS = 1.0;
+
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    private double srtt = -1;   // millis, -1 until the first sample
+    private double rttvar = 0;  // millis
+    private long rto;           // millis, including any backoff
+    private int backoffCount = 0;
+
+    public RetransmissionTimer(long initialTimeout, long minTimeout, long maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.rto = clamp(initialTimeout);
+    }
+
+    // Feeds one round-trip measurement of a segment that was sent exactly once
+    public void onSample(long rttNanos) {
+        double r = rttNanos / 1_000_000.0;
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - r);
+            srtt = (1 - ALPHA) * srtt + ALPHA * r;
+        }
+        backoffCount = 0;
+        rto = clamp(Math.round(srtt + Math.max(CLOCK_GRANULARITY_MILLIS, K * rttvar)));
+    }
+
+    // Called when the timer fires without an ACK
+    public void onTimeout() {
+        backoffCount++;
+        rto = clamp(rto * 2);
+    }
+
+    public long getTimeout() {
+        return rto;
+    }
+
+    // Smoothed RTT in millis, or -1 before the first sample
+    public double getSmoothedRtt() {
+        return srtt;
+    }
+
+    public double getRttVariance() {
+        return rttvar;
+    }
+
+    public int getBackoffCount() {
+        return backoffCount;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minTimeout, Math.min(maxTimeout, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RTO=%dms SRTT=%.2fms RTTVAR=%.2fms backoff=%d", rto, srtt, rttvar, backoffCount);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Server-side cache of hot download files, held in memory within a byte budget.
+ * - An entry is one whole version of a file (path, size and modification time); DATA segments of
+ *   any agreed segment size are read-only slices of it, ready for Packet.wrap, so nothing is copied
+ * - Concurrent downloads of the same version share one entry; a download that asks while the entry
+ *   is still being read waits for that read instead of starting another
+ * - A request for a file whose size or mtime changed drops the old version (an invalidation)
+ * - Eviction is least-recently-used. With the "tinylfu" policy a new file is only admitted if it
+ *   has been asked for more often than every entry it would push out (TinyLFU admission,
+ *   frequencies from a count-min sketch that is halved every RESET_INTERVAL requests)
+ * - A file that isn't admitted, is bigger than the budget, or fails to load is served from
+ *   MappedFile as before
+ * - An evicted entry stays valid for downloads already using it; the budget only counts entries
+ *   the cache still holds
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class SegmentCache {
+
+    // --- Eviction Policies ---
+    public static final String LRU = "lru";
+    public static final String TINY_LFU = "tinylfu";
+
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    private final long budget;
+    private final boolean tinyLfu;
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    // All guarded by 'this'. 'entries' is in access order, eldest (the next victim) first.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> keysByPath = new HashMap<>();
+    private final Map<String, CompletableFuture<Entry>> loading = new HashMap<>();
+    private long used = 0; // cached bytes, plus the reservations of files being read
+
+    // --- Statistics (guarded by 'this') ---
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long invalidations;
+
+    public SegmentCache(long budget, String policy) {
+        if (!isKnown(policy)) {
+            throw new IllegalArgumentException("Unknown cache policy: " + policy);
+        }
+        this.budget = Math.max(0, budget);
+        this.tinyLfu = TINY_LFU.equalsIgnoreCase(policy);
+    }
+
+    public static boolean isKnown(String policy) {
+        return LRU.equalsIgnoreCase(policy) || TINY_LFU.equalsIgnoreCase(policy);
+    }
+
+    // One cached version of a file
+    public static final class Entry {
+        private final String key;
+        private final String path;
+        private final ByteBuffer data; // read-only, position 0, limit = size
+
+        private Entry(String key, String path, ByteBuffer data) {
+            this.key = key;
+            this.path = path;
+            this.data = data;
+        }
+
+        public long size() {
+            return data.limit();
+        }
+
+        // Read-only view of [offset, offset + length), without copying
+        public ByteBuffer slice(long offset, int length) {
+            return data.slice((int) offset, length);
+        }
+
+        // Segments [firstSegment, endSegment) as consecutive slices, the same as MappedFile.segments
+        public SegmentSource segments(int segmentSize, long firstSegment, long endSegment) {
+            long size = size();
+            long endOffset = (endSegment > size / segmentSize) ? size : endSegment * segmentSize;
+            return new SegmentSource() {
+                private long offset = firstSegment * segmentSize;
+
+                @Override
+                public ByteBuffer next() {
+                    if (offset >= endOffset) {
+                        return null;
+                    }
+                    int length = (int) Math.min(segmentSize, endOffset - offset);
+                    ByteBuffer segment = slice(offset, length);
+                    offset += length;
+                    return segment;
+                }
+            };
+        }
+    }
+
+    // The cached file, reading it in first if it is admitted; null means serve it from disk
+    public Entry get(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        long size = file.length();
+        long modified = file.lastModified();
+        String key = path + "|" + size + "|" + modified;
+
+        CompletableFuture<Entry> pending;
+        boolean loader = false;
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            pending = loading.get(key);
+            if (pending != null) {
+                hits++; // shares the read already under way
+            } else {
+                misses++;
+                invalidateOtherVersions(path, key);
+                if (size > budget || size > Integer.MAX_VALUE || !makeRoom(key, size)) {
+                    rejections++;
+                    return null;
+                }
+                used += size;
+                pending = new CompletableFuture<>();
+                loading.put(key, pending);
+                loader = true;
+            }
+        }
+        if (loader) {
+            return load(file, path, key, size, modified, pending);
+        }
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            return null; // the loading download already reported it
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + path);
+        }
+    }
+
+    // Reads the whole file outside the lock; other requests for it wait on 'pending'
+    private Entry load(File file, String path, String key, long size, long modified, CompletableFuture<Entry> pending) {
+        Entry entry = null;
+        try {
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (data.hasRemaining()) {
+                    if (channel.read(data, data.position()) < 0) {
+                        throw new EOFException("File shrank while caching: " + path);
+                    }
+                }
+            }
+            if (file.length() != size || file.lastModified() != modified) {
+                throw new IOException("File changed while caching: " + path);
+            }
+            data.flip();
+            entry = new Entry(key, path, data.asReadOnlyBuffer());
+        } catch (IOException | OutOfMemoryError e) {
+            // Out of memory only if the budget is larger than the heap; the download still goes ahead from disk
+            System.err.println("Not caching " + path + ": " + e);
+        }
+
+        synchronized (this) {
+            loading.remove(key);
+            if (entry == null) {
+                used -= size;
+            } else {
+                entries.put(key, entry);
+                keysByPath.put(path, key);
+            }
+        }
+        if (entry == null) {
+            pending.completeExceptionally(new IOException("Not cached: " + path));
+        } else {
+            pending.complete(entry);
+        }
+        return entry;
+    }
+
+    // A new version of a file makes the cached one useless
+    private void invalidateOtherVersions(String path, String key) {
+        String previous = keysByPath.get(path);
+        if (previous != null && !previous.equals(key)) {
+            Entry stale = entries.remove(previous);
+            keysByPath.remove(path);
+            if (stale != null) {
+                used -= stale.size();
+                invalidations++;
+            }
+        }
+    }
+
+    // Evicts least-recently-used entries until 'size' more bytes fit. With TinyLFU nothing is evicted
+    // unless the candidate is requested more often than every victim; returns false if it doesn't fit.
+    private boolean makeRoom(String candidate, long size) {
+        long needed = used + size - budget;
+        if (needed <= 0) {
+            return true;
+        }
+        List<Entry> victims = new ArrayList<>();
+        int candidateFrequency = sketch.frequency(candidate);
+        for (Entry entry : entries.values()) {
+            if (needed <= 0) {
+                break;
+            }
+            if (tinyLfu && sketch.frequency(entry.key) >= candidateFrequency) {
+                return false;
+            }
+            victims.add(entry);
+            needed -= entry.size();
+        }
+        if (needed > 0) {
+            return false; // the rest of the budget is reserved by files still being read
+        }
+        for (Entry victim : victims) {
+            entries.remove(victim.key);
+            keysByPath.remove(victim.path, victim.key);
+            used -= victim.size();
+            evictions++;
+        }
+        return true;
+    }
+
+    // --- Statistics ---
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return (requests == 0) ? 0 : (double) hits / requests;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Misses that were served from disk because the file wasn't admitted or didn't fit
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentCache{" + (tinyLfu ? TINY_LFU : LRU)
+                + ", files=" + entries.size()
+                + ", used=" + used + "/" + budget
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + String.format(", hitRate=%.1f%%", getHitRate() * 100)
+                + ", evictions=" + evictions
+                + ", rejections=" + rejections
+                + ", invalidations=" + invalidations + '}';
+    }
+
+    // Count-min sketch of how often each file version is requested (4-bit counters, 4 rows)
+    private static final class FrequencySketch {
+        private static final int WIDTH = 1024; // a power of two
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private static final int MAX_COUNT = 15;
+        private static final int RESET_INTERVAL = 10 * WIDTH;
+
+        private final byte[][] counts = new byte[SEEDS.length][WIDTH];
+        private int additions = 0;
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(hash, row);
+                if (counts[row][index] < MAX_COUNT) {
+                    counts[row][index]++;
+                }
+            }
+            // Aging: halve everything now and then, so files that were popular long ago give way
+            if (++additions == RESET_INTERVAL) {
+                for (byte[] row : counts) {
+                    for (int i = 0; i < WIDTH; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, counts[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private static int index(int hash, int row) {
+            return ((hash ^ (hash >>> 16)) * SEEDS[row]) >>> (32 - Integer.numberOfTrailingZeros(WIDTH));
+        }
+    }
+}
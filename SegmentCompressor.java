@@ -0,0 +1,154 @@
+/*
+ * Per-segment Deflate compression for sessions that agreed on "compress=deflate".
+ * - Every DATA segment is compressed on its own (raw Deflate, no zlib header), so a lost or
+ *   resent segment never depends on another one; compressed segments carry Packet.FLAG_COMPRESSED
+ * - A segment that doesn't shrink goes out as is; after a run of those (already compressed
+ *   data such as archives or media) only every PROBE_INTERVAL-th segment is tried
+ * - Compression runs on a shared pool of worker threads, a window's worth of segments ahead
+ *   of the sender, so the send loop only waits when the workers fall behind
+ * - Inflating is cheap and happens on the receiving thread
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class SegmentCompressor implements SegmentSource {
+    public static final String DEFLATE = "deflate";
+    public static final int DEFAULT_LEVEL = 6;
+
+    private static final int GIVE_UP_AFTER = 16;   // incompressible segments in a row
+    private static final int PROBE_INTERVAL = 64;
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "segment-compressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(DEFAULT_LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final SegmentSource source;
+    private final int level;
+    private final int lookahead;
+    private final ArrayDeque<Future<Segment>> pending = new ArrayDeque<>();
+    private boolean exhausted = false;
+    private int incompressible = 0; // in a row, as of the last segment handed out
+    private int skipped = 0;        // segments sent raw without trying since giving up
+    private int flags = 0;
+
+    // The source must not reuse a buffer once it has returned it (neither fromStream nor MappedFile does)
+    public SegmentCompressor(SegmentSource source, int level, int lookahead) {
+        this.source = source;
+        this.level = level;
+        this.lookahead = Math.max(1, lookahead);
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        // Keep the workers a window ahead of the sender
+        while (!exhausted && pending.size() < lookahead) {
+            ByteBuffer segment = source.next();
+            if (segment == null) {
+                exhausted = true;
+            } else if (incompressible >= GIVE_UP_AFTER && ++skipped % PROBE_INTERVAL != 0) {
+                pending.add(CompletableFuture.completedFuture(new Segment(segment, false)));
+            } else {
+                pending.add(WORKERS.submit(() -> compress(segment, level)));
+            }
+        }
+
+        Future<Segment> head = pending.poll();
+        if (head == null) {
+            return null;
+        }
+        Segment segment;
+        try {
+            segment = head.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a segment");
+        } catch (ExecutionException e) {
+            throw new IOException("Segment compression failed", e.getCause());
+        }
+
+        flags = segment.compressed ? Packet.FLAG_COMPRESSED : 0;
+        if (segment.compressed) {
+            incompressible = 0;
+            skipped = 0;
+        } else {
+            incompressible++;
+        }
+        return segment.bytes;
+    }
+
+    @Override
+    public int flags() {
+        return flags;
+    }
+
+    // Falls back to the original bytes if compressing didn't make them smaller
+    private static Segment compress(ByteBuffer segment, int level) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(segment.duplicate());
+        deflater.finish();
+
+        // Anything that doesn't fit in one byte less than the input isn't worth sending compressed
+        byte[] out = new byte[Math.max(0, segment.remaining() - 1)];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        if (!deflater.finished()) {
+            return new Segment(segment, false);
+        }
+        return new Segment(ByteBuffer.wrap(out, 0, length), true);
+    }
+
+    // Restores a FLAG_COMPRESSED DATA packet to the segment it was made from
+    public static Packet inflate(Packet packet, int segmentSize) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(packet.getPayloadBuffer());
+
+        // A segment never inflates past the session's segment size; more than that is a corrupt packet
+        byte[] out = new byte[segmentSize];
+        int length = 0;
+        try {
+            while (!inflater.finished() && length < out.length) {
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed segment " + packet.getSequenceNumber(), e);
+        }
+        if (!inflater.finished()) {
+            throw new IOException("Corrupt compressed segment " + packet.getSequenceNumber());
+        }
+        return Packet.wrap(packet.getMessageType(), packet.getSequenceNumber(), packet.getSessionId(), ByteBuffer.wrap(out, 0, length));
+    }
+
+    private static final class Segment {
+        final ByteBuffer bytes;
+        final boolean compressed;
+
+        Segment(ByteBuffer bytes, boolean compressed) {
+            this.bytes = bytes;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Receiver storage engine: writes each DATA segment straight to its place in the file.
+ * - Segment i goes to offset i * segmentSize with a positional FileChannel write,
+ *   so out-of-order and duplicate arrivals cost no buffering and no rework
+ * - Received segments are tracked in a BitSet (one bit per segment)
+ * - Data is forced to disk every SYNC_INTERVAL segments rather than per write
+ * - finish() checks that nothing is missing, trims the file to its exact length and syncs it
+ * - With a TransferCheckpoint attached, every sync (and an unfinished close) records how far
+ *   the file is contiguous on disk; a resumed writer starts with those segments already present
+ * - abandon() (a digest mismatch) drops the checkpoint and makes finish() fail, so a corrupt
+ *   file is neither completed nor resumed
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+public class SegmentFileWriter implements SegmentStore {
+    private static final int SYNC_INTERVAL = 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final BitSet received = new BitSet();
+    private long contiguous = 0;
+    private long length = 0;
+    private int unsynced = 0;
+    private TransferCheckpoint checkpoint = null;
+    private boolean finished = false;
+    private boolean abandoned = false;
+    private final Object syncLock = new Object();
+
+    public SegmentFileWriter(Path path, int segmentSize) throws IOException {
+        this(path, segmentSize, 0);
+    }
+
+    // Keeps the first 'resumeSegments' segments already in the file and expects only the rest
+    public SegmentFileWriter(Path path, int segmentSize, long resumeSegments) throws IOException {
+        this.path = path;
+        this.channel = (resumeSegments > 0)
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.segmentSize = segmentSize;
+        if (resumeSegments > 0) {
+            received.set(0, Math.toIntExact(resumeSegments));
+            contiguous = resumeSegments;
+            length = resumeSegments * segmentSize;
+        }
+    }
+
+    public SegmentFileWriter withCheckpoint(TransferCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    // Safe to call from several threads for different segments (see StripedTransfer):
+    // only the bookkeeping is locked, the positional writes themselves run in parallel
+    @Override
+    public boolean store(long index, Packet packet) throws IOException {
+        int bit = Math.toIntExact(index);
+        synchronized (this) {
+            if (received.get(bit)) {
+                return false;
+            }
+        }
+
+        ByteBuffer payload = packet.getPayloadBuffer();
+        long position = index * segmentSize;
+        while (payload.hasRemaining()) {
+            position += channel.write(payload, position);
+        }
+
+        boolean syncDue;
+        synchronized (this) {
+            received.set(bit);
+            length = Math.max(length, position);
+            if (bit == contiguous) {
+                contiguous = received.nextClearBit(bit);
+            }
+            syncDue = ++unsynced >= SYNC_INTERVAL;
+            if (syncDue) {
+                unsynced = 0;
+            }
+        }
+        if (syncDue) {
+            sync();
+        }
+        return true;
+    }
+
+    // Forces the data out first, so the checkpoint never claims more than is on disk
+    private void sync() throws IOException {
+        synchronized (syncLock) {
+            long durable;
+            synchronized (this) {
+                durable = Math.min(contiguous * segmentSize, length);
+            }
+            channel.force(false);
+            if (checkpoint != null) {
+                checkpoint.save(durable);
+            }
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    @Override
+    public synchronized long contiguousCount() {
+        return contiguous;
+    }
+
+    public synchronized boolean isReceived(long index) {
+        return received.get(Math.toIntExact(index));
+    }
+
+    // First segment at or after 'index' that has not arrived yet
+    public synchronized long nextMissing(long index) {
+        return received.nextClearBit(Math.toIntExact(index));
+    }
+
+    // The resumed segments, read back from the file
+    @Override
+    public void digestPrefix(TransferDigest digest) throws IOException {
+        long prefix;
+        synchronized (this) {
+            prefix = Math.min(contiguous * segmentSize, length);
+        }
+        if (prefix > 0) {
+            digest.update(path, 0, prefix);
+        }
+    }
+
+    @Override
+    public boolean digestSegments(TransferDigest digest, long from, long to) throws IOException {
+        long start;
+        long stop;
+        synchronized (this) {
+            start = Math.min(from * segmentSize, length);
+            stop = Math.min(to * segmentSize, length);
+        }
+        if (stop > start) {
+            digest.update(path, start, stop);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void abandon() throws IOException {
+        abandoned = true;
+        finished = true;
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+    }
+
+    // Called on FIN: every one of 'segmentCount' segments must be present
+    public synchronized boolean finish(long segmentCount) throws IOException {
+        if (abandoned || contiguous < segmentCount) {
+            return false;
+        }
+        channel.truncate(length);
+        channel.force(true);
+        unsynced = 0;
+        finished = true;
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+        return true;
+    }
+
+    // Closing an unfinished transfer leaves a checkpoint behind for the next attempt
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished && checkpoint != null && channel.isOpen()) {
+                sync();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Segments sent in parts, for a session whose full-size datagrams stop getting through mid-transfer
+ * (a route change, a tunnel). Segment i has to stay at i * segment size, so the segment size can't
+ * shrink once a session is running; instead each segment keeps its sequence number and goes out
+ * in smaller pieces.
+ * - Only with "split" agreed (see SessionOptions). SlidingWindowSender raises the level when a
+ *   full-size segment keeps timing out, up to MAX_LEVEL
+ * - At level L the parts are ceil(segment size / 2^L) bytes, the last one possibly shorter. Each is a
+ *   DATA packet with FLAG_PART, its level and index in the header flags, FLAG_LAST_PART on the last one,
+ *   and the segment's other flags (compression, ACK_NOW) unchanged
+ * - The receiver's Assembler puts the segment back together before the ReceiveWindow sees it;
+ *   nothing is ACKed until every part is in, so a lost part costs a retransmission of the segment
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+public final class SegmentParts {
+    public static final int MAX_LEVEL = 3;
+
+    private static final int LEVEL_MASK = 0x3;
+    private static final int INDEX_MASK = 0x7;
+    private static final int PART_FLAGS = Packet.FLAG_PART | Packet.FLAG_LAST_PART
+            | (LEVEL_MASK << Packet.PART_LEVEL_SHIFT) | (INDEX_MASK << Packet.PART_INDEX_SHIFT);
+
+    private SegmentParts() {
+    }
+
+    public static int partSize(int segmentSize, int level) {
+        return (segmentSize + (1 << level) - 1) >> level;
+    }
+
+    // Sends 'segment' in parts of partSize(segmentSize, level); returns how many datagrams that took
+    public static int send(PacketChannel channel, Packet segment, int segmentSize, int level) throws IOException {
+        if (level < 1 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Split level must be between 1 and " + MAX_LEVEL + ": " + level);
+        }
+        int size = partSize(segmentSize, level);
+        ByteBuffer payload = segment.getPayloadBuffer();
+        int length = payload.remaining();
+        int flags = segment.getMessageType() | segment.getFlags() | Packet.FLAG_PART | (level << Packet.PART_LEVEL_SHIFT);
+        for (int index = 0, offset = 0; ; index++, offset += size) {
+            int n = Math.min(size, length - offset);
+            boolean last = offset + n >= length;
+            ByteBuffer part = payload.duplicate();
+            part.position(offset).limit(offset + n);
+            channel.send(Packet.wrap(flags | (index << Packet.PART_INDEX_SHIFT) | (last ? Packet.FLAG_LAST_PART : 0),
+                    segment.getSequenceNumber(), segment.getSessionId(), part));
+            if (last) {
+                return index + 1;
+            }
+        }
+    }
+
+    // Receiving side: one partly assembled segment per sequence number, dropped once the window passes it
+    public static final class Assembler {
+        private static final class Assembly {
+            final int level;
+            final byte[] data;
+            int received; // bit per part
+            int parts;    // known once the last part is in
+            int length;
+
+            Assembly(int level, int segmentSize) {
+                this.level = level;
+                this.data = new byte[segmentSize];
+            }
+        }
+
+        private final int segmentSize;
+        private final TreeMap<Long, Assembly> pending = new TreeMap<>();
+        private long assembled;
+
+        public Assembler(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        // Adds one part of a segment at or above 'expectedSeq'; returns the whole segment once its last
+        // part is in, otherwise null. A part that can't belong to a segment is an IllegalArgumentException.
+        public Packet add(Packet part, long expectedSeq) {
+            pending.headMap(expectedSeq).clear();
+            int flags = part.getFlags();
+            int level = (flags >>> Packet.PART_LEVEL_SHIFT) & LEVEL_MASK;
+            int index = (flags >>> Packet.PART_INDEX_SHIFT) & INDEX_MASK;
+            boolean last = (flags & Packet.FLAG_LAST_PART) != 0;
+            int size = partSize(segmentSize, level);
+            int offset = index * size;
+            int length = part.getPayloadLength();
+            if (level == 0 || length > size || (!last && length != size) || offset + length > segmentSize) {
+                throw new IllegalArgumentException("Malformed part " + index + " (level " + level + ", "
+                        + length + " bytes) of segment " + part.getSequenceNumber());
+            }
+
+            long seq = part.getSequenceNumber();
+            Assembly assembly = pending.get(seq);
+            if (assembly == null || assembly.level != level) {
+                // A resend at another level starts over
+                assembly = new Assembly(level, segmentSize);
+                pending.put(seq, assembly);
+            }
+            part.getPayloadBuffer().get(0, assembly.data, offset, length);
+            assembly.received |= 1 << index;
+            if (last) {
+                assembly.parts = index + 1;
+                assembly.length = offset + length;
+            }
+            if (assembly.parts == 0 || assembly.received != (1 << assembly.parts) - 1) {
+                return null;
+            }
+            pending.remove(seq);
+            assembled++;
+            return new Packet(Arrays.copyOf(assembly.data, assembly.length), part.getMessageType() | (flags & ~PART_FLAGS),
+                    seq, part.getSessionId());
+        }
+
+        // Segments put back together so far
+        public long getAssembled() {
+            return assembled;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Supplies the payloads of consecutive DATA segments to SlidingWindowSender.
+ * - fromStream: reads an InputStream into one fresh array per segment
+ * - fromChannel: the same for a ReadableByteChannel (a file, a pipe, a socket); the sender only
+ *   asks for a segment when the window has room, so a fast producer is held back, not buffered
+ * - MappedFile.segments: slices of a memory-mapped file, nothing is copied
+ * - SegmentCompressor: compresses another source's segments ahead of the sender
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public interface SegmentSource {
+
+    // Payload of the next segment (position to limit), or null once the source is exhausted
+    ByteBuffer next() throws IOException;
+
+    // Header flags for the segment next() last returned (e.g. Packet.FLAG_COMPRESSED)
+    default int flags() {
+        return 0;
+    }
+
+    static SegmentSource fromStream(InputStream in, int segmentSize) {
+        return () -> {
+            byte[] segment = new byte[segmentSize];
+            int bytesRead = in.readNBytes(segment, 0, segmentSize);
+            return (bytesRead > 0) ? ByteBuffer.wrap(segment, 0, bytesRead) : null;
+        };
+    }
+
+    // Fills each segment completely unless the channel ends first, so short reads (pipes) don't
+    // turn into short segments. The channel must be in blocking mode.
+    static SegmentSource fromChannel(ReadableByteChannel in, int segmentSize) {
+        return () -> {
+            ByteBuffer segment = ByteBuffer.allocate(segmentSize);
+            while (segment.hasRemaining() && in.read(segment) >= 0) {
+                // keep reading
+            }
+            segment.flip();
+            return segment.hasRemaining() ? segment : null;
+        };
+    }
+}
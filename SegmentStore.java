@@ -0,0 +1,31 @@
+/*
+ * Where a ReceiveWindow puts the DATA segments it accepts.
+ * - StreamSegmentStore: reorders in memory and writes to an OutputStream in sequence
+ * - SegmentFileWriter: writes every segment straight to its offset in a file
+ * Indices are relative to the session's initial sequence number (first segment = 0).
+ */
+
+import java.io.*;
+
+public interface SegmentStore extends Closeable {
+
+    // Stores segment 'index'; returns false if it was already stored
+    boolean store(long index, Packet packet) throws IOException;
+
+    // Number of segments [0, n) that are all stored
+    long contiguousCount();
+
+    // Feeds the segments this store already held before the session started (a resumed file) to the digest
+    default void digestPrefix(TransferDigest digest) throws IOException {
+    }
+
+    // Feeds stored segments [from, to) to the digest, read back from storage; false if this store
+    // can't read back what it stored
+    default boolean digestSegments(TransferDigest digest, long from, long to) throws IOException {
+        return false;
+    }
+
+    // The data failed verification: nothing may be finished or resumed from it
+    default void abandon() throws IOException {
+    }
+}
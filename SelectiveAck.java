@@ -0,0 +1,130 @@
+/*
+ * Selective acknowledgement (SACK) blocks carried in the payload of an ACK.
+ * - The ACK's sequence number stays the cumulative ACK; the blocks name the runs of
+ *   segments [start, end) the receiver holds beyond it
+ * - The format is agreed through the "sack" session option; a peer that doesn't send it gets
+ *   version 0, the original format: an 8-byte payload naming one out-of-order segment
+ * - Version 1: [version:1][count:1] then per block, in ascending order, two unsigned varints:
+ *   the gap since the previous block's end (the first counts from cumulative + 1) and the length.
+ *   A full window of blocks fits in a few hundred bytes; most ACKs need 4-6
+ * - At most MAX_BLOCKS are sent; the block holding the segment that triggered the ACK is
+ *   always among them, so every arrival is reported at least once
+ */
+
+import java.nio.ByteBuffer;
+
+public final class SelectiveAck {
+    public static final int LEGACY = 0;
+    public static final int VERSION = 1;
+    public static final int MAX_BLOCKS = 16;
+
+    private final long[] starts = new long[MAX_BLOCKS];
+    private final long[] ends = new long[MAX_BLOCKS];
+    private int count;
+
+    public int getBlockCount() {
+        return count;
+    }
+
+    public long getStart(int block) {
+        return starts[block];
+    }
+
+    // Exclusive
+    public long getEnd(int block) {
+        return ends[block];
+    }
+
+    // Blocks must be added in ascending order; returns false once the ACK is full
+    public boolean add(long start, long end) {
+        if (count == MAX_BLOCKS) {
+            return false;
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+        return true;
+    }
+
+    // --- Encoding ---
+
+    public byte[] encode(long cumulative, int version) {
+        if (count == 0) {
+            return null;
+        }
+        if (version == LEGACY) {
+            // The old format has room for a single segment
+            return ByteBuffer.allocate(Long.BYTES).putLong(starts[0]).array();
+        }
+        ByteBuffer out = ByteBuffer.allocate(2 + count * 2 * 10);
+        out.put((byte) VERSION);
+        out.put((byte) count);
+        long previousEnd = cumulative + 1;
+        for (int i = 0; i < count; i++) {
+            putVarint(out, starts[i] - previousEnd);
+            putVarint(out, ends[i] - starts[i]);
+            previousEnd = ends[i];
+        }
+        byte[] payload = new byte[out.position()];
+        out.flip().get(payload);
+        return payload;
+    }
+
+    // --- Decoding ---
+
+    // Returns null if the ACK carries no blocks or they can't be read
+    public static SelectiveAck parse(Packet ack, int version) {
+        byte[] payload = ack.getPayload();
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+        SelectiveAck sack = new SelectiveAck();
+        ByteBuffer in = ByteBuffer.wrap(payload);
+
+        if (version == LEGACY) {
+            if (payload.length != Long.BYTES) {
+                return null;
+            }
+            long seq = in.getLong();
+            sack.add(seq, seq + 1);
+            return sack;
+        }
+
+        try {
+            if (in.get() != VERSION) {
+                return null;
+            }
+            int blocks = Math.min(in.get() & 0xFF, MAX_BLOCKS);
+            long previousEnd = ack.getSequenceNumber() + 1;
+            for (int i = 0; i < blocks; i++) {
+                long start = previousEnd + getVarint(in);
+                long end = start + getVarint(in);
+                sack.add(start, end);
+                previousEnd = end;
+            }
+        } catch (RuntimeException e) {
+            return null; // truncated or corrupt; the cumulative ACK still counts
+        }
+        return sack;
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * Server-side state for one client session, run on one of the server's worker threads.
+ * - The dispatcher in ReliableServer routes every datagram for this session into 'inbox', its
+ *   payload in a buffer from the server's pool: a packet returned by receive() is released by the
+ *   next receive(), so anything that keeps a payload past that keeps Packet.detach() instead
+ * - Handshake: parse the SYN, agree on options, answer with SYN_ACK or ERROR
+ * - UPLOAD: receive DATA into a ReceiveWindow until FIN
+ * - DOWNLOAD: send the file through a SlidingWindowSender, then FIN; hot files come from the
+ *   server's SegmentCache, everything else from a MappedFile
+ * - RESUME:UPLOAD / RESUME:DOWNLOAD: the same, starting at the agreed segment; segment i
+ *   always keeps sequence number (SYN seq + i), so both ends index the file identically
+ * - SYNC: the client's manifest of a directory, our answer with the files that are missing or
+ *   differ under "server_<name>", then just those files packed back to back (see SyncManifest);
+ *   each phase ends with a FIN the other side checks, and the next phase's first packet also
+ *   counts as the ACK of that FIN
+ * - Striped transfers: each stripe is its own session covering one range of segments;
+ *   upload stripes join a StripedTransfer registered by the first one and share its file
+ * - Segments are as large as the agreed "segment" option (capped by the server's own limit);
+ *   a resumed transfer restarts at the checkpoint rounded down to that size
+ * - The FIN carries the sender's SHA-256; the receiving side checks it before finishing the
+ *   file and answers with its own in the ACK
+ * - Each session has its own TransferMetrics (adding into the server's totals), published over
+ *   JMX as "ReliableUdp:type=Session" while it runs; per-packet logging is Log.DEBUG only
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ServerSession implements PacketChannel, Runnable {
+    private static final int MAX_RETRIES = 5;
+    private static final int SYNC_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final Transport transport;
+    private final SessionKey key;
+    private final InetSocketAddress peer; // the key's address and port, built once
+    private final Packet synPacket;
+    private final Runnable onClose;
+    private final Map<String, StripedTransfer> stripedUploads;
+    private final String defaultCongestionControl;
+    private final int maxMtu;
+    private final SegmentCache fileCache; // null when the server doesn't cache downloads
+    private final BlockingQueue<Packet> inbox = new LinkedBlockingQueue<>();
+    private final RetransmissionTimer retransmissionTimer;
+    private final TransferMetrics metrics;
+    private final long synReceivedAt; // nanos
+
+    private long expectedSequenceNumber;
+    private SegmentFileWriter fileWriter = null;
+    private StripedTransfer stripedUpload = null;
+    private StripedTransfer.Stripe stripe = null;
+    private ReceiveWindow receiveWindow = null;
+    private byte[] finAckPayload = null; // our upload digest, repeated in every ACK of the FIN
+    private Packet synAck = null;
+    private Packet lastReceived = null; // released by the next receive()
+
+    public ServerSession(Transport transport, SessionKey key, Packet synPacket, Runnable onClose,
+                         Map<String, StripedTransfer> stripedUploads, String defaultCongestionControl, int maxMtu,
+                         SegmentCache fileCache, TransferMetrics serverMetrics) {
+        this.transport = transport;
+        this.key = key;
+        this.peer = new InetSocketAddress(key.getAddress(), key.getPort());
+        this.synPacket = synPacket;
+        this.onClose = onClose;
+        this.stripedUploads = stripedUploads;
+        this.defaultCongestionControl = defaultCongestionControl;
+        this.maxMtu = maxMtu;
+        this.fileCache = fileCache;
+        this.expectedSequenceNumber = synPacket.getSequenceNumber();
+        this.retransmissionTimer = transport.newRetransmissionTimer();
+        this.metrics = new TransferMetrics(serverMetrics);
+        this.synReceivedAt = System.nanoTime();
+        metrics.onPacketReceived(Packet.HEADER_SIZE + synPacket.getPayloadLength());
+    }
+
+    // Called by the dispatcher thread; the packet (and its pooled payload) is the session's from here
+    public void deliver(Packet packet) {
+        inbox.offer(packet);
+    }
+
+    @Override
+    public void send(Packet packet) throws IOException {
+        transport.sendPacket(packet, peer);
+        metrics.onPacketSent(Packet.HEADER_SIZE + packet.getPayloadLength());
+    }
+
+    @Override
+    public Packet receive() throws IOException {
+        return receive(getTimeout());
+    }
+
+    @Override
+    public Packet receive(long timeoutMillis) throws IOException {
+        releaseReceived();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            Packet packet;
+            try {
+                packet = (remaining > 0) ? inbox.poll(remaining, TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Session interrupted");
+            }
+            if (packet == null) {
+                return null;
+            }
+            metrics.onPacketReceived(Packet.HEADER_SIZE + packet.getPayloadLength());
+            // A repeated SYN means our SYN_ACK was lost; answer it here so the transfer loops never see it
+            if (packet.getMessageType() == Packet.SYN) {
+                if (synAck != null) {
+                    send(synAck);
+                }
+                packet.release();
+                continue;
+            }
+            lastReceived = packet;
+            return packet;
+        }
+    }
+
+    private void releaseReceived() {
+        if (lastReceived != null) {
+            lastReceived.release();
+            lastReceived = null;
+        }
+    }
+
+    @Override
+    public void beginBatch() {
+        transport.beginBatch();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        transport.flush();
+    }
+
+    @Override
+    public int getSessionId() {
+        return key.getSessionId();
+    }
+
+    @Override
+    public int getTimeout() {
+        return transport.getTimeout();
+    }
+
+    @Override
+    public RetransmissionTimer getRetransmissionTimer() {
+        return retransmissionTimer;
+    }
+
+    @Override
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void run() {
+        metrics.register("Session", key.toString());
+        try {
+            handleHandshake(synPacket);
+        } catch (IOException e) {
+            System.err.println("Session " + key + " failed: " + e.getMessage());
+        } finally {
+            releaseReceived();
+            closeFile();
+            metrics.close();
+            if (Log.isDebug()) {
+                Log.debug("Session " + key + " metrics: " + metrics.snapshot());
+            }
+            onClose.run();
+        }
+    }
+
+    private void handleHandshake(Packet packet) throws IOException {
+        // [cite: 40, 41] Server acknowledges session and agrees on sequence number
+        System.out.println("Received SYN from " + key + ". Initializing session...");
+
+        // First line is "COMMAND:filename" (or "RESUME:COMMAND:filename"), any following lines are session options
+        String payload = new String(packet.getPayload()).trim();
+        String[] lines = payload.split("\n", 2);
+        String[] parts = lines[0].split(":", 2);
+        String command = parts.length > 0 ? parts[0] : "";
+        String filename = parts.length > 1 ? parts[1] : "default.bin";
+        boolean resume = command.equals("RESUME");
+        if (resume) {
+            parts = filename.split(":", 2);
+            command = parts[0];
+            filename = parts.length > 1 ? parts[1] : "default.bin";
+        }
+        SessionOptions requested = SessionOptions.parse(lines.length > 1 ? lines[1] : null);
+        SessionOptions agreed = requested.negotiate();
+        if (!agreed.has(SessionOptions.CONGESTION)) {
+            agreed.set(SessionOptions.CONGESTION, defaultCongestionControl);
+        }
+        // Only a client that named its datagram size can be given a smaller one; the segment shrinks with it
+        if (agreed.has(SessionOptions.MTU) && agreed.getMtu() > maxMtu) {
+            agreed.set(SessionOptions.MTU, maxMtu);
+            agreed.set(SessionOptions.SEGMENT, agreed.getSegmentSize());
+        }
+
+        if (command.equals("UPLOAD")) {
+            startUpload(filename, requested, agreed, resume);
+        } else if (command.equals("DOWNLOAD")) {
+            startDownload(filename, requested, agreed, resume);
+        } else if (command.equals("SYNC")) {
+            startSync(filename, agreed);
+        } else {
+            acceptSession(agreed.encode().getBytes());
+        }
+    }
+
+    private void startUpload(String filename, SessionOptions requested, SessionOptions agreed, boolean resume) throws IOException {
+        if (!resume && agreed.getStripeCount() > 1) {
+            startStripedUpload(filename, requested, agreed);
+            return;
+        }
+        if (agreed.has(SessionOptions.STRIPES)) {
+            agreed.set(SessionOptions.STRIPES, 1);
+        }
+
+        Path target = Paths.get("server_" + filename);
+        long size = requested.getLong(SessionOptions.SIZE, -1);
+        long modified = requested.getLong(SessionOptions.MTIME, -1);
+        int segmentSize = agreed.getSegmentSize();
+
+        // Resume only from our own checkpoint, and only if the client's file is the one it was written for
+        long firstSegment = 0;
+        if (resume) {
+            TransferCheckpoint saved = TransferCheckpoint.load(target);
+            if (saved != null) {
+                firstSegment = saved.resumeOffset(size, modified, target) / segmentSize;
+            }
+        }
+        agreed.set(SessionOptions.OFFSET, firstSegment * segmentSize);
+
+        // [cite: 55, 56] Segments are written straight to their offset, in whatever order they arrive
+        this.fileWriter = new SegmentFileWriter(target, segmentSize, firstSegment);
+        if (size >= 0 && modified >= 0) {
+            fileWriter.withCheckpoint(new TransferCheckpoint(target, size, modified));
+        }
+        this.receiveWindow = new ReceiveWindow(fileWriter, agreed, expectedSequenceNumber).withMetrics(metrics);
+        if (firstSegment > 0) {
+            System.out.println("Resuming upload of " + filename + " at segment " + firstSegment);
+        }
+        acceptSession(agreed.encode().getBytes());
+        receiveUpload();
+    }
+
+    private void startStripedUpload(String filename, SessionOptions requested, SessionOptions agreed) throws IOException {
+        Path target = Paths.get("server_" + filename);
+        int index = requested.getInt(SessionOptions.STRIPE, 0);
+        String transferKey = key.getAddress().getHostAddress() + "#" + requested.get(SessionOptions.TRANSFER, "");
+
+        // The first stripe sets the transfer up; the client opens the others only after its SYN_ACK
+        StripedTransfer transfer;
+        if (index == 0) {
+            long size = requested.getLong(SessionOptions.SIZE, -1);
+            long modified = requested.getLong(SessionOptions.MTIME, -1);
+            if (size < 0) {
+                send(new Packet(Packet.ERROR, 0, getSessionId(), "Missing File Size".getBytes()));
+                return;
+            }
+            SegmentFileWriter writer = new SegmentFileWriter(target, agreed.getSegmentSize());
+            if (modified >= 0) {
+                writer.withCheckpoint(new TransferCheckpoint(target, size, modified));
+            }
+            transfer = new StripedTransfer(writer, StripedTransfer.segmentCount(size, agreed.getSegmentSize()),
+                    agreed.getStripeCount(), () -> stripedUploads.remove(transferKey));
+            stripedUploads.put(transferKey, transfer);
+        } else {
+            transfer = stripedUploads.get(transferKey);
+        }
+
+        StripedTransfer.Stripe joined = (transfer != null) ? transfer.attach(index) : null;
+        if (joined == null) {
+            send(new Packet(Packet.ERROR, 0, getSessionId(), "Unknown Transfer".getBytes()));
+            return;
+        }
+        this.stripedUpload = transfer;
+        this.stripe = joined;
+        agreed.set(SessionOptions.STRIPES, transfer.getStripeCount());
+        if (agreed.has(SessionOptions.SEGMENT)) {
+            // Every stripe indexes the file the way the first one does
+            agreed.set(SessionOptions.SEGMENT, transfer.getSegmentSize());
+        }
+        this.receiveWindow = new ReceiveWindow(joined, agreed, expectedSequenceNumber).withMetrics(metrics);
+        System.out.println("Stripe " + index + "/" + transfer.getStripeCount() + " of " + filename
+                + ": segments " + joined.getFirstSegment() + "-" + joined.getEndSegment());
+        acceptSession(agreed.encode().getBytes());
+        receiveUpload();
+    }
+
+    private void startDownload(String filename, SessionOptions requested, SessionOptions agreed, boolean resume) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            send(new Packet(Packet.ERROR, 0, getSessionId(), "File Not Found".getBytes()));
+            return;
+        }
+
+        // The client's checkpoint names the version it has; a changed file starts over
+        long size = file.length();
+        long modified = file.lastModified();
+        long offset = 0;
+        if (resume && requested.getLong(SessionOptions.SIZE, -1) == size
+                && requested.getLong(SessionOptions.MTIME, -1) == modified) {
+            offset = Math.max(0, Math.min(requested.getLong(SessionOptions.OFFSET, 0), size));
+        }
+        int segmentSize = agreed.getSegmentSize();
+        long firstSegment = offset / segmentSize;
+        long endSegment = Long.MAX_VALUE;
+
+        // A stripe sends only its own range, and only of the version the first stripe saw
+        int stripes = resume ? 1 : agreed.getStripeCount();
+        if (stripes > 1) {
+            int index = requested.getInt(SessionOptions.STRIPE, 0);
+            if (index >= stripes || (index > 0 && (requested.getLong(SessionOptions.SIZE, -1) != size
+                    || requested.getLong(SessionOptions.MTIME, -1) != modified))) {
+                send(new Packet(Packet.ERROR, 0, getSessionId(), "File Changed".getBytes()));
+                return;
+            }
+            long total = StripedTransfer.segmentCount(size, segmentSize);
+            firstSegment = StripedTransfer.firstSegment(total, stripes, index);
+            endSegment = StripedTransfer.endSegment(total, stripes, index);
+        }
+        if (agreed.has(SessionOptions.STRIPES)) {
+            agreed.set(SessionOptions.STRIPES, stripes);
+        }
+        agreed.set(SessionOptions.OFFSET, (stripes > 1) ? 0 : firstSegment * segmentSize)
+                .set(SessionOptions.SIZE, size)
+                .set(SessionOptions.MTIME, modified);
+        acceptSession(agreed.encode().getBytes());
+
+        // Start sending the file data for download requests
+        sendFile(file, agreed, firstSegment, endSegment);
+    }
+
+    // One session in three phases, sequence numbers carrying on from each to the next: the client's
+    // manifest, our answer (how many files we need, then a bitmap of them), then those files back to back
+    private void startSync(String name, SessionOptions agreed) throws IOException {
+        if (agreed.has(SessionOptions.STRIPES)) {
+            agreed.set(SessionOptions.STRIPES, 1);
+        }
+        Path target = Paths.get("server_" + name);
+        acceptSession(agreed.encode().getBytes());
+
+        // 1. The manifest
+        SyncManifest.Receiver manifestBytes = new SyncManifest.Receiver();
+        this.receiveWindow = new ReceiveWindow(manifestBytes, agreed, expectedSequenceNumber).withMetrics(metrics);
+        Packet fin = receiveUntilFin(expectedSequenceNumber);
+        if (fin == null) {
+            System.out.println("Session " + key + " timed out sending its manifest.");
+            return;
+        }
+        if (!checkPhaseFin(fin)) {
+            return;
+        }
+        SyncManifest manifest;
+        try {
+            manifest = manifestBytes.decode();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bad manifest from " + key + ": " + e.getMessage());
+            send(new Packet(Packet.ERROR, fin.getSequenceNumber(), getSessionId(), "Bad Manifest".getBytes()));
+            return;
+        }
+        send(new Packet(Packet.ACK, fin.getSequenceNumber(), getSessionId(), finAckPayload));
+
+        // 2. Which files we need
+        BitSet changed = manifest.changedIn(target, SYNC_THREADS);
+        System.out.println("Sync of " + name + " from " + key + ": " + changed.cardinality() + " of "
+                + manifest.size() + " files to receive (" + manifest.bytes(changed) + " bytes)");
+        byte[] bitmap = changed.toByteArray();
+        ByteBuffer answer = ByteBuffer.allocate(Integer.BYTES + bitmap.length).putInt(changed.cardinality()).put(bitmap);
+        SlidingWindowSender sender = new SlidingWindowSender(this, agreed, fin.getSequenceNumber() + 1);
+        if (!sender.transfer(new ByteArrayInputStream(answer.array()))) {
+            System.out.println("Client disconnected during sync.");
+            return;
+        }
+        Packet next = endPhase(sender);
+        if (next == null) {
+            return;
+        }
+
+        // 3. The files themselves
+        long bundleSeq = sender.getNextSequence() + 1;
+        SyncBundleWriter bundle = new SyncBundleWriter(target, manifest, changed);
+        try {
+            this.receiveWindow = new ReceiveWindow(bundle, agreed, bundleSeq).withMetrics(metrics);
+            if (next.getMessageType() == Packet.FIN) {
+                fin = next; // nothing to send
+            } else {
+                if (next.getMessageType() != Packet.ACK) {
+                    handleDataTransfer(next);
+                }
+                fin = receiveUntilFin(bundleSeq);
+            }
+            if (fin == null) {
+                System.out.println("Session " + key + " timed out during sync.");
+                return;
+            }
+            if (!checkPhaseFin(fin)) {
+                return;
+            }
+            if (!bundle.isComplete()) {
+                send(new Packet(Packet.ERROR, fin.getSequenceNumber(), getSessionId(), "Incomplete Transfer".getBytes()));
+                return;
+            }
+            if (bundle.getFailed() > 0) {
+                send(new Packet(Packet.ERROR, fin.getSequenceNumber(), getSessionId(),
+                        (bundle.getFailed() + " Files Changed During Sync").getBytes()));
+                return;
+            }
+            Packet finAck = new Packet(Packet.ACK, fin.getSequenceNumber(), getSessionId(), finAckPayload);
+            send(finAck);
+            System.out.println("Sync of " + name + " complete: " + bundle.getWritten() + " files written.");
+            lingerAfterFin(finAck);
+        } finally {
+            bundle.close();
+        }
+    }
+
+    // The FIN ending a phase the client sent: its SHA-256 must match and nothing may be missing.
+    // Answers with ERROR if not; otherwise leaves our digest in finAckPayload for the ACK.
+    private boolean checkPhaseFin(Packet fin) throws IOException {
+        TransferDigest digest = receiveWindow.getDigest();
+        if (digest == null || !digest.matches(fin)) {
+            System.out.println("Sync from " + key + " is corrupt: SHA-256 mismatch.");
+            send(new Packet(Packet.ERROR, fin.getSequenceNumber(), getSessionId(), "Digest Mismatch".getBytes()));
+            return false;
+        }
+        if (receiveWindow.getExpectedSequence() != fin.getSequenceNumber()) {
+            send(new Packet(Packet.ERROR, fin.getSequenceNumber(), getSessionId(), "Incomplete Transfer".getBytes()));
+            return false;
+        }
+        finAckPayload = digest.finish();
+        return true;
+    }
+
+    // Ends a phase we sent: FIN until the client ACKs it, or shows it got it by starting the next
+    // phase. That first packet of the next phase (DATA, PARITY or its FIN) is returned so it isn't
+    // lost; null if the client went away or disagrees about the digest.
+    private Packet endPhase(SlidingWindowSender sender) throws IOException {
+        Packet finPacket = new Packet(Packet.FIN, sender.getNextSequence(), getSessionId(), sender.getDigest().finish());
+        int attempt = 0;
+        send(finPacket);
+        while (attempt < MAX_RETRIES) {
+            Packet response = receive(retransmissionTimer.getTimeout());
+            if (response == null) {
+                attempt++;
+                retransmissionTimer.onTimeout();
+                send(finPacket);
+                continue;
+            }
+            int type = response.getMessageType();
+            if (type == Packet.ACK && response.getSequenceNumber() == finPacket.getSequenceNumber()) {
+                if (!sender.getDigest().matches(response)) {
+                    System.out.println("Sync with " + key + " is corrupt: client's SHA-256 differs.");
+                    return null;
+                }
+                return response;
+            } else if ((type == Packet.DATA || type == Packet.PARITY || type == Packet.FIN)
+                    && response.getSequenceNumber() > finPacket.getSequenceNumber()) {
+                return response;
+            } else if (type == Packet.ERROR) {
+                System.out.println("Client Error during sync: " + new String(response.getPayload()));
+                return null;
+            }
+        }
+        System.out.println("Timeout waiting for FIN ACK from " + key + ".");
+        return null;
+    }
+
+    private void acceptSession(byte[] synAckPayload) throws IOException {
+        synAck = new Packet(Packet.SYN_ACK, expectedSequenceNumber, getSessionId(), synAckPayload);
+        send(synAck);
+        // Our side of the handshake: waiting for a worker, negotiating, opening the file
+        metrics.onHandshake(System.nanoTime() - synReceivedAt);
+    }
+
+    private void receiveUpload() throws IOException {
+        Packet fin = receiveUntilFin(expectedSequenceNumber);
+        if (fin == null) {
+            System.out.println("Session " + key + " timed out during upload.");
+            return;
+        }
+        lingerAfterFin(handleTermination(fin));
+    }
+
+    // Feeds DATA to 'receiveWindow' until a FIN arrives and returns it, or null after MAX_RETRIES
+    // idle timeouts. A FIN below 'firstSeq' ends an earlier phase of the session and is ignored.
+    private Packet receiveUntilFin(long firstSeq) throws IOException {
+        int idle = 0;
+        while (true) {
+            // Send a delayed ACK once it is due; never wait past that point for the next packet
+            Packet delayedAck = receiveWindow.pollAck();
+            if (delayedAck != null) {
+                send(delayedAck);
+            }
+            boolean ackPending = receiveWindow.hasPendingAck();
+            Packet packet = receive(receiveWindow.millisUntilAck(getTimeout()));
+            if (packet == null) {
+                if (ackPending) {
+                    continue;
+                }
+                if (++idle >= MAX_RETRIES) {
+                    return null;
+                }
+                continue;
+            }
+            idle = 0;
+
+            switch (packet.getMessageType()) {
+                case Packet.DATA:
+                case Packet.PARITY:
+                    handleDataTransfer(packet);
+                    break;
+                case Packet.FIN:
+                    if (packet.getSequenceNumber() >= firstSeq) {
+                        return packet;
+                    }
+                    break;
+                default:
+                    if (Log.isDebug()) {
+                        Log.debug("Received unexpected packet type: " + packet.getMessageType());
+                    }
+            }
+        }
+    }
+
+    private void handleDataTransfer(Packet packet) throws IOException {
+        // Write the payload at its offset in our stored file, whatever order it arrives in
+        long before = receiveWindow.getExpectedSequence();
+        Packet ack = (packet.getMessageType() == Packet.PARITY) ? receiveWindow.onParity(packet) : receiveWindow.onData(packet);
+        if (Log.isDebug()) {
+            if (receiveWindow.getExpectedSequence() > before) {
+                Log.debug("Received " + Packet.messageTypeToString(packet.getMessageType()) + ": " + packet.getSequenceNumber() + " (next expected: " + receiveWindow.getExpectedSequence() + ")");
+            } else {
+                Log.debug("Out-of-order " + Packet.messageTypeToString(packet.getMessageType()) + ": " + packet.getSequenceNumber() + " (expected: " + before + ")");
+            }
+        }
+        if (ack != null) {
+            send(ack);
+        }
+        expectedSequenceNumber = receiveWindow.getExpectedSequence();
+    }
+
+    // Answers the upload's FIN and returns the answer: the ACK carrying our digest once the file is
+    // verified and finished, otherwise an ERROR
+    private Packet handleTermination(Packet packet) throws IOException {
+        System.out.println("Received FIN from " + key + ". Closing session...");
+
+        // The client's SHA-256 must match what we received before anything is finished
+        TransferDigest digest = receiveWindow.getDigest();
+        if (digest == null || !digest.matches(packet)) {
+            System.out.println("Upload from " + key + " is corrupt: SHA-256 mismatch.");
+            receiveWindow.getStore().abandon();
+            return sendError(packet, "Digest Mismatch");
+        }
+
+        boolean complete = true;
+        if (stripe != null) {
+            complete = stripedUpload.complete(stripe);
+        } else if (fileWriter != null) {
+            complete = fileWriter.finish(packet.getSequenceNumber() - synPacket.getSequenceNumber());
+        }
+        if (!complete) {
+            return sendError(packet, "Incomplete Transfer");
+        }
+        closeFile();
+        finAckPayload = digest.finish();
+        Packet finAck = new Packet(Packet.ACK, packet.getSequenceNumber(), getSessionId(), finAckPayload);
+        send(finAck);
+        return finAck;
+    }
+
+    private Packet sendError(Packet fin, String reason) throws IOException {
+        Packet error = new Packet(Packet.ERROR, fin.getSequenceNumber(), getSessionId(), reason.getBytes());
+        send(error);
+        return error;
+    }
+
+    // Stay around for one timeout so a retransmitted FIN (our answer was lost) gets the same answer
+    // again: an ERROR is never turned into an ACK
+    private void lingerAfterFin(Packet answer) throws IOException {
+        Packet packet;
+        while ((packet = receive()) != null) {
+            if (packet.getMessageType() == Packet.FIN) {
+                send(answer);
+            }
+        }
+    }
+
+    private void sendFile(File file, SessionOptions options, long firstSegment, long endSegment) {
+        MappedFile mapped = null;
+        try {
+            // Segments are slices of a cached copy or a (shared) mapping; retransmissions re-send the same slices
+            int segmentSize = options.getSegmentSize();
+            SegmentCache.Entry cached = (fileCache != null) ? fileCache.get(file) : null;
+            SegmentSource segments;
+            if (cached != null) {
+                segments = cached.segments(segmentSize, firstSegment, endSegment);
+            } else {
+                mapped = MappedFile.open(file, segmentSize);
+                segments = mapped.segments(segmentSize, firstSegment, endSegment);
+            }
+            SlidingWindowSender sender = new SlidingWindowSender(this, options, expectedSequenceNumber + firstSegment);
+            if (options.getStripeCount() == 1 && firstSegment > 0) {
+                // A resumed download's digest covers the whole file, including the part the client kept
+                long prefix = firstSegment * segmentSize;
+                if (cached != null) {
+                    sender.getDigest().update(cached.slice(0, (int) prefix));
+                } else {
+                    sender.getDigest().update(file.toPath(), 0, prefix);
+                }
+            }
+            if (!sender.transfer(segments)) {
+                System.out.println("Client disconnected during download.");
+                return;
+            }
+
+            // [cite: 63, 64] Close via FIN and wait for the client's ACK
+            Packet finPacket = new Packet(Packet.FIN, sender.getNextSequence(), getSessionId(), sender.getDigest().finish());
+            int attempt = 0;
+            send(finPacket);
+            while (attempt < MAX_RETRIES) {
+                Packet response = receive(retransmissionTimer.getTimeout());
+                if (response == null) {
+                    attempt++;
+                    retransmissionTimer.onTimeout();
+                    send(finPacket);
+                } else if (response.getMessageType() == Packet.ACK
+                        && response.getSequenceNumber() == finPacket.getSequenceNumber()) {
+                    if (!sender.getDigest().matches(response)) {
+                        System.out.println("Download to " + key + " is corrupt: client's SHA-256 differs.");
+                    }
+                    return;
+                } else if (response.getMessageType() == Packet.ERROR) {
+                    System.out.println("Client Error after download: " + new String(response.getPayload()));
+                    return;
+                }
+            }
+            System.out.println("Timeout waiting for FIN ACK from " + key + ".");
+
+        } catch (IOException e) {
+            System.err.println("Error sending file: " + e.getMessage());
+        } finally {
+            if (mapped != null) {
+                mapped.release();
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (fileWriter != null) {
+            try {
+                fileWriter.close();
+            } catch (IOException e) {
+                System.err.println("Error closing upload for " + key + ": " + e.getMessage());
+            }
+            fileWriter = null;
+        }
+        if (stripedUpload != null) {
+            try {
+                stripedUpload.release();
+            } catch (IOException e) {
+                System.err.println("Error closing striped upload for " + key + ": " + e.getMessage());
+            }
+            stripedUpload = null;
+            stripe = null;
+        }
+        receiveWindow = null;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Session table key: a client is identified by its address, its port and
+ * the session ID it picked for its SYN, so one client can run several sessions.
+ * - Keys from the constructor never change and are the only ones stored in a map
+ * - lookup() gives a key that set() can point at each incoming datagram, so the receive
+ *   path finds its session without allocating one per packet
+ */
+
+import java.net.*;
+
+public final class SessionKey {
+    private InetAddress address;
+    private int port;
+    private int sessionId;
+    private final boolean reusable;
+
+    public SessionKey(InetAddress address, int port, int sessionId) {
+        this(address, port, sessionId, false);
+    }
+
+    private SessionKey(InetAddress address, int port, int sessionId, boolean reusable) {
+        this.address = address;
+        this.port = port;
+        this.sessionId = sessionId;
+        this.reusable = reusable;
+    }
+
+    // A key for map lookups only, owned by one thread
+    public static SessionKey lookup() {
+        return new SessionKey(null, 0, 0, true);
+    }
+
+    public SessionKey set(InetAddress address, int port, int sessionId) {
+        if (!reusable) {
+            throw new IllegalStateException("Session keys are immutable; use SessionKey.lookup() to search");
+        }
+        this.address = address;
+        this.port = port;
+        this.sessionId = sessionId;
+        return this;
+    }
+
+    // An immutable copy, for storing
+    public SessionKey copy() {
+        return new SessionKey(address, port, sessionId);
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+    public int getPort() {
+        return port;
+    }
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SessionKey)) {
+            return false;
+        }
+        SessionKey other = (SessionKey) o;
+        return port == other.port && sessionId == other.sessionId && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        // No varargs array or boxing: this runs for every datagram
+        return (31 * address.hashCode() + port) * 31 + sessionId;
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostAddress() + ":" + port + "#" + sessionId;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Session parameters agreed during the SYN/SYN_ACK exchange.
+ * - The SYN payload is "OPERATION:filename" followed by one "key=value" line per option
+ * - The SYN_ACK payload carries the options the server accepted, in the same format
+ * - A peer that sends no options gets the defaults, which behave like stop-and-wait
+ * - Resumed transfers also carry the byte offset to restart from and the source file's
+ *   size and modification time, so a changed source is never resumed
+ * - Striped transfers negotiate the stripe count on the first stripe's SYN; the other
+ *   stripes name their index and the client-chosen transfer id they belong to
+ * - "sack" is the highest SelectiveAck version the client understands; the server answers
+ *   with the version both sides will use, and a missing key means version 0
+ * - "compress=deflate" turns on per-segment compression of DATA in both directions;
+ *   "level" is the Deflate level (1-9) the sending side uses
+ * - "mtu" is the datagram size the client's path MTU discovery settled on, and "segment" the DATA
+ *   payload size that fills it; the server may lower either, and missing keys mean Packet.MTU
+ *   and Packet.DEFAULT_SEGMENT_SIZE. No segment (or parity packet) is ever larger than the MTU allows
+ * - "split" means the receiver reassembles segments the sender cut into parts after repeated
+ *   losses (see SegmentParts)
+ * - "ackevery" and "ackdelay" turn on delayed ACKs at both receivers (see ReceiveWindow):
+ *   at most one ACK per that many in-order segments, held back no longer than that many ms
+ * - "fec" is the FEC block size: that many DATA segments are followed by PARITY packets (see
+ *   FecEncoder). A client asking for FEC asks for segments FecEncoder.HEADER_SIZE bytes shorter,
+ *   so a parity packet still fits the datagram its path MTU discovery settled on
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SessionOptions {
+
+    // --- Option Keys ---
+    public static final String WINDOW = "window";
+    public static final String MODE = "mode";
+    public static final String OFFSET = "offset";
+    public static final String SIZE = "size";
+    public static final String MTIME = "mtime";
+    public static final String STRIPES = "stripes";
+    public static final String STRIPE = "stripe";
+    public static final String TRANSFER = "transfer";
+    public static final String CONGESTION = "cc";
+    public static final String SACK = "sack";
+    public static final String COMPRESSION = "compress";
+    public static final String COMPRESSION_LEVEL = "level";
+    public static final String SEGMENT = "segment";
+    public static final String ACK_EVERY = "ackevery";
+    public static final String ACK_DELAY = "ackdelay";
+    public static final String FEC = "fec";
+    public static final String MTU = "mtu";
+    public static final String SPLIT = "split";
+
+    // --- Recovery Modes ---
+    public static final String GO_BACK_N = "GBN";
+    public static final String SELECTIVE_REPEAT = "SR";
+
+    // --- Limits ---
+    public static final int DEFAULT_WINDOW = 1;
+    public static final int MAX_WINDOW = 256;
+    public static final int MAX_STRIPES = 16;
+    public static final int MAX_ACK_EVERY = 16;
+    public static final int DEFAULT_ACK_DELAY_MILLIS = 10;
+    // Well under SocketManager.MIN_RTO_MILLIS, so a held-back ACK never looks like a loss
+    public static final int MAX_ACK_DELAY_MILLIS = 25;
+    public static final int MAX_FEC_BLOCK = 64;
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    public SessionOptions set(String key, Object value) {
+        values.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    public int getWindowSize() {
+        int window = getInt(WINDOW, DEFAULT_WINDOW);
+        return Math.max(1, Math.min(window, MAX_WINDOW));
+    }
+
+    public boolean isSelectiveRepeat() {
+        return SELECTIVE_REPEAT.equalsIgnoreCase(get(MODE, GO_BACK_N));
+    }
+
+    // Congestion control algorithm for this session's senders (see CongestionControl)
+    public String getCongestionControl() {
+        return get(CONGESTION, CongestionControl.CUBIC).toLowerCase();
+    }
+
+    // ACK payload format for this session (see SelectiveAck)
+    public int getSackVersion() {
+        return Math.max(SelectiveAck.LEGACY, Math.min(getInt(SACK, SelectiveAck.LEGACY), SelectiveAck.VERSION));
+    }
+
+    // Deflate level for DATA segments, or 0 when the session doesn't compress
+    public int getCompressionLevel() {
+        if (!SegmentCompressor.DEFLATE.equalsIgnoreCase(get(COMPRESSION, null))) {
+            return 0;
+        }
+        int level = getInt(COMPRESSION_LEVEL, SegmentCompressor.DEFAULT_LEVEL);
+        return Math.max(1, Math.min(level, 9));
+    }
+
+    // Largest datagram either side sends in this session
+    public int getMtu() {
+        int mtu = getInt(MTU, Packet.MTU);
+        return Math.max(Packet.MIN_MTU, Math.min(mtu, Packet.MAX_MTU));
+    }
+
+    // Payload bytes per DATA segment; segment i of the file starts at byte i * getSegmentSize().
+    // With FEC the segment leaves room for the parity header, so a PARITY packet fits the MTU too.
+    public int getSegmentSize() {
+        int segment = getInt(SEGMENT, Packet.DEFAULT_SEGMENT_SIZE);
+        int ceiling = getMtu() - Packet.HEADER_SIZE - ((getFecBlock() > 0) ? FecEncoder.HEADER_SIZE : 0);
+        return Math.min(Math.max(Packet.MIN_MTU - Packet.HEADER_SIZE, segment), ceiling);
+    }
+
+    // Whether the sender may split segments into parts (see SegmentParts)
+    public boolean canSplit() {
+        return getInt(SPLIT, 0) > 0;
+    }
+
+    // In-order segments per ACK; 1 (the default) acknowledges every segment
+    public int getAckEvery() {
+        int every = getInt(ACK_EVERY, 1);
+        return Math.max(1, Math.min(every, MAX_ACK_EVERY));
+    }
+
+    // Longest a receiver holds back the ACK for an in-order segment
+    public int getAckDelayMillis() {
+        int delay = getInt(ACK_DELAY, DEFAULT_ACK_DELAY_MILLIS);
+        return Math.max(1, Math.min(delay, MAX_ACK_DELAY_MILLIS));
+    }
+
+    // DATA segments per FEC block, never more than the window; 0 when the session doesn't use FEC
+    public int getFecBlock() {
+        int block = Math.min(Math.min(getInt(FEC, 0), MAX_FEC_BLOCK), getWindowSize());
+        return (block >= 2) ? block : 0;
+    }
+
+    // Number of parallel sessions a striped transfer uses; 1 means an ordinary single session
+    public int getStripeCount() {
+        int stripes = getInt(STRIPES, 1);
+        return Math.max(1, Math.min(stripes, MAX_STRIPES));
+    }
+
+    // Serialization: one "key=value" line per option
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    // Deserialization: unknown or malformed lines are ignored so older peers can still connect
+    public static SessionOptions parse(String text) {
+        SessionOptions options = new SessionOptions();
+        if (text == null) {
+            return options;
+        }
+        for (String line : text.split("\n")) {
+            int eq = line.indexOf('=');
+            if (eq > 0) {
+                options.values.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+            }
+        }
+        return options;
+    }
+
+    // Server side: accept what the client asked for, clamped to what we support
+    public SessionOptions negotiate() {
+        SessionOptions agreed = new SessionOptions();
+        agreed.set(WINDOW, getWindowSize());
+        agreed.set(MODE, isSelectiveRepeat() ? SELECTIVE_REPEAT : GO_BACK_N);
+        if (has(STRIPES)) {
+            agreed.set(STRIPES, getStripeCount());
+        }
+        if (CongestionControl.isKnown(get(CONGESTION, null))) {
+            agreed.set(CONGESTION, getCongestionControl());
+        }
+        if (getSackVersion() > SelectiveAck.LEGACY) {
+            agreed.set(SACK, getSackVersion());
+        }
+        if (getCompressionLevel() > 0) {
+            agreed.set(COMPRESSION, SegmentCompressor.DEFLATE);
+            agreed.set(COMPRESSION_LEVEL, getCompressionLevel());
+        }
+        if (has(MTU)) {
+            agreed.set(MTU, getMtu());
+        }
+        if (getFecBlock() > 0) {
+            agreed.set(FEC, getFecBlock());
+        }
+        if (has(SEGMENT) || getFecBlock() > 0) {
+            // Clamped to the agreed MTU, less the parity header with FEC
+            agreed.set(SEGMENT, getSegmentSize());
+        }
+        if (canSplit()) {
+            agreed.set(SPLIT, 1);
+        }
+        if (getAckEvery() > 1) {
+            agreed.set(ACK_EVERY, getAckEvery());
+            agreed.set(ACK_DELAY, getAckDelayMillis());
+        }
+        return agreed;
+    }
+
+    public SessionOptions copy() {
+        SessionOptions copy = new SessionOptions();
+        copy.values.putAll(values);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionOptions" + values;
+    }
+}
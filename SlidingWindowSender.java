@@ -0,0 +1,497 @@
+/*
+ * Pipelined DATA sender shared by ReliableClient (uploads) and ReliableServer (downloads).
+ * - Keeps up to 'windowSize' unacknowledged segments in flight
+ * - ACKs are cumulative: ACK n means every segment up to and including n arrived
+ * - Go-Back-N: on timeout, resend every outstanding segment
+ * - Selective Repeat: only segments whose own timer expired are resent
+ * - ACK payloads carry SelectiveAck blocks for segments held beyond the cumulative ACK
+ *   (version 0 peers name a single segment, which only Selective Repeat uses); held segments
+ *   are never resent, in either mode
+ * - Timers come from the session's RetransmissionTimer; segments that were ever
+ *   retransmitted are never used as RTT samples (Karn's rule)
+ * - New segments are limited by the session's CongestionControl as well as the agreed
+ *   window, and paced out over the RTT; a retransmission is a loss signal (at most one
+ *   per window of data), and an RTO with nothing heard at all is a timeout
+ * - With delayed ACKs agreed, the source is read one segment ahead so the last segment can
+ *   carry FLAG_ACK_NOW; otherwise the transfer would end by waiting out the peer's ACK delay
+ * - Segments are hashed into a TransferDigest as they are first handed out, for the FIN
+ * - With compression agreed, segments are compressed by a SegmentCompressor ahead of the window
+ *   and sent with whatever header flags it reports
+ * - Fast retransmit: a hole with DUPLICATE_ACK_THRESHOLD segments SACKed above it is resent once
+ *   without waiting for its timer; version 0 peers only allow this for 'base', after the third ACK
+ *   in a row that still names the segment before it
+ * - With FEC agreed, every block of new segments is followed by its PARITY packets (see FecEncoder),
+ *   and a SACKed hole is only fast-retransmitted once a segment sent after its block's parity
+ *   has been SACKed too: until then the receiver may still rebuild it. A hole the parity can't
+ *   repair with nothing sent after its block waits for its timer
+ * - With "split" agreed, a full-size segment at 'base' that times out SPLIT_AFTER_TIMEOUTS times in a row
+ *   means the path may no longer carry full-size datagrams: from then on every segment longer than a
+ *   part goes out in parts (see SegmentParts), halving again on each further timeout down to MAX_LEVEL.
+ *   A timeout that splits neither backs the RTO off nor uses up MAX_RETRIES, so the search ends
+ *   before either side gives up
+ * - Retransmissions, timer expiries, RTT samples and acknowledged payload go to the channel's TransferMetrics
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public class SlidingWindowSender {
+    private static final int MAX_RETRIES = 5;
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+    private static final int SPLIT_AFTER_TIMEOUTS = 2;
+
+    private final PacketChannel channel;
+    private final RetransmissionTimer timer;
+    private final TransferMetrics metrics;
+    private final int windowSize;
+    private final boolean selectiveRepeat;
+    private final int sackVersion;
+    private final int compressionLevel;
+    private final int segmentSize;
+    private final long initialSeq;
+    private final boolean delayedAcks;
+    private final CongestionControl congestion;
+    private final Pacer pacer = new Pacer();
+    private final TransferDigest digest = new TransferDigest();
+    private final FecEncoder fec; // null without FEC
+    private final boolean canSplit;
+    private int splitLevel; // 0 while whole segments get through
+
+    // Ring buffers indexed by (seq % windowSize)
+    private final Packet[] inFlight;
+    private final long[] sentAt;
+    private final boolean[] acked;
+    private final boolean[] retransmitted;
+    private final long[] blockEnd; // FEC: first segment after the block, once its parity is out
+
+    // The segment read ahead of the one being sent (delayed ACKs only) and the header flags of each
+    private ByteBuffer lookahead;
+    private int lookaheadFlags;
+    private boolean primed;
+    private int segmentFlags;
+
+    private long base;
+    private long nextSeq;
+    private long highestSacked; // highest segment a SACK block covered
+    private long recoveryEnd;   // losses below this belong to a window that was already cut
+    private long lastAckAt;     // nanos
+    private int duplicateAcks;  // ACKs in a row that didn't move 'base'
+    private long newestAckedAt; // send time of the newest clean segment the current ACK covers
+
+    public SlidingWindowSender(PacketChannel channel, SessionOptions options, long initialSeq) {
+        this.channel = channel;
+        this.timer = channel.getRetransmissionTimer();
+        this.metrics = channel.getMetrics();
+        this.windowSize = options.getWindowSize();
+        this.selectiveRepeat = options.isSelectiveRepeat();
+        this.sackVersion = options.getSackVersion();
+        this.compressionLevel = options.getCompressionLevel();
+        this.segmentSize = options.getSegmentSize();
+        this.initialSeq = initialSeq;
+        this.delayedAcks = options.getAckEvery() > 1;
+        this.inFlight = new Packet[windowSize];
+        this.sentAt = new long[windowSize];
+        this.acked = new boolean[windowSize];
+        this.retransmitted = new boolean[windowSize];
+        this.blockEnd = new long[windowSize];
+        this.fec = (options.getFecBlock() > 0) ? new FecEncoder(options.getFecBlock(), segmentSize, options.getMtu(), initialSeq) : null;
+        this.congestion = CongestionControl.create(options.getCongestionControl(), windowSize);
+        this.canSplit = options.canSplit();
+        this.base = initialSeq;
+        this.nextSeq = initialSeq;
+        this.highestSacked = initialSeq - 1;
+        this.recoveryEnd = initialSeq;
+        this.lastAckAt = System.nanoTime();
+        this.newestAckedAt = Long.MIN_VALUE;
+        updatePacing();
+    }
+
+    // Sends the whole stream; returns false if the peer went away or reported an error
+    public boolean transfer(InputStream in) throws IOException {
+        return transfer(SegmentSource.fromStream(in, segmentSize));
+    }
+
+    // Sends every segment of the source; in-flight packets keep referencing the source's buffers,
+    // so retransmissions never re-read it
+    public boolean transfer(SegmentSource source) throws IOException {
+        source = digest.wrap(source);
+        if (compressionLevel > 0) {
+            source = new SegmentCompressor(source, compressionLevel, windowSize);
+        }
+        boolean eof = false;
+        int retries = 0;
+
+        while (true) {
+            if (!eof) {
+                eof = fillWindow(source);
+            }
+
+            if (eof && base == nextSeq) {
+                return true;
+            }
+
+            // Wait only until the oldest outstanding segment's timer is due, or the pacer lets the next one go
+            Packet response = channel.receive(millisUntilNextEvent(eof));
+
+            if (response == null) {
+                if (retransmitExpired() == 0) {
+                    continue;
+                }
+                metrics.onTimeout();
+                retries++;
+                if (retries >= SPLIT_AFTER_TIMEOUTS && splitIfFullSize()) {
+                    // Its full-size copy just went the way of the others; the parts go now. Smaller
+                    // datagrams test the path rather than the queue, so the RTO isn't backed off again,
+                    // and the new size gets its own retries (the next timeout still splits further)
+                    transmit(slot(base));
+                    retries = SPLIT_AFTER_TIMEOUTS - 1;
+                } else {
+                    timer.onTimeout();
+                }
+                // A timeout is a congestion signal first: on a fast path MAX_RETRIES backed-off RTOs
+                // can pass in well under a second, so the peer must also have been silent for the idle timeout
+                if (retries >= MAX_RETRIES && System.nanoTime() - lastAckAt >= channel.getTimeout() * 1_000_000L) {
+                    System.out.println("Connection lost: Failed to receive ACK for seq " + base);
+                    return false;
+                }
+                continue;
+            }
+
+            if (response.getMessageType() == Packet.ACK) {
+                if (handleAck(response)) {
+                    retries = 0;
+                }
+                if (sackVersion > SelectiveAck.LEGACY) {
+                    retransmitHoles();
+                } else if (duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+                    fastRetransmit();
+                }
+                if (selectiveRepeat && retransmitExpired() > 0) {
+                    timer.onTimeout();
+                    metrics.onTimeout();
+                }
+            } else if (response.getMessageType() == Packet.ERROR) {
+                System.out.println("Peer Error during transfer: " + new String(response.getPayload()));
+                return false;
+            }
+        }
+    }
+
+    // Sends new segments until the window is full, handing the whole burst to the transport at once.
+    // Returns true once the input is exhausted.
+    private boolean fillWindow(SegmentSource source) throws IOException {
+        channel.beginBatch();
+        try {
+            while (nextSeq < base + sendWindow()) {
+                long now = System.nanoTime();
+                if (!pacer.canSend(now)) {
+                    return false;
+                }
+                ByteBuffer payload = nextSegment(source);
+                if (payload == null) {
+                    sendParity();
+                    return true;
+                }
+                Packet dataPacket = Packet.wrap(Packet.DATA | segmentFlags, nextSeq, channel.getSessionId(), payload);
+                int slot = slot(nextSeq);
+                inFlight[slot] = dataPacket;
+                acked[slot] = false;
+                retransmitted[slot] = false;
+                blockEnd[slot] = Long.MAX_VALUE;
+                transmit(slot);
+                pacer.onSend(now);
+                nextSeq++;
+                if (fec != null && fec.add(dataPacket)) {
+                    sendParity();
+                }
+            }
+            return false;
+        } finally {
+            channel.flush();
+        }
+    }
+
+    // Sends the parity of the FEC block built so far, if any
+    private void sendParity() throws IOException {
+        if (fec == null || fec.getBlockLength() == 0) {
+            return;
+        }
+        long start = fec.getBlockStart();
+        for (long seq = start; seq < nextSeq; seq++) {
+            blockEnd[slot(seq)] = nextSeq;
+        }
+        int sent = fec.flush(channel);
+        metrics.onParitySent(sent);
+        long now = System.nanoTime();
+        for (int i = 0; i < sent; i++) {
+            pacer.onSend(now);
+        }
+    }
+
+    // The source's next segment, its header flags left in 'segmentFlags'
+    private ByteBuffer nextSegment(SegmentSource source) throws IOException {
+        if (!delayedAcks) {
+            ByteBuffer segment = source.next();
+            segmentFlags = source.flags();
+            return segment;
+        }
+        if (!primed) {
+            lookahead = source.next();
+            lookaheadFlags = source.flags();
+            primed = true;
+        }
+        ByteBuffer segment = lookahead;
+        segmentFlags = lookaheadFlags;
+        if (segment != null) {
+            lookahead = source.next();
+            lookaheadFlags = source.flags();
+            if (lookahead == null) {
+                segmentFlags |= Packet.FLAG_ACK_NOW;
+            }
+        }
+        return segment;
+    }
+
+    // The segment at 'base' keeps timing out: if the next level would cut it smaller, go there
+    private boolean splitIfFullSize() {
+        if (!canSplit || splitLevel >= SegmentParts.MAX_LEVEL || base == nextSeq
+                || inFlight[slot(base)].getPayloadLength() <= SegmentParts.partSize(segmentSize, splitLevel + 1)) {
+            return false;
+        }
+        splitLevel++;
+        System.out.println("Segment " + base + " keeps timing out; sending segments in "
+                + SegmentParts.partSize(segmentSize, splitLevel) + "-byte parts.");
+        return true;
+    }
+
+    // How many times segments are being split (0: not at all)
+    public int getSplitLevel() {
+        return splitLevel;
+    }
+
+    // The sequence number to use for the FIN once transfer() returns
+    public long getNextSequence() {
+        return nextSeq;
+    }
+
+    // False if not one segment was acknowledged, which after a good handshake points at a path MTU black hole
+    public boolean anyAcked() {
+        return base > initialSeq;
+    }
+
+    // SHA-256 of every segment sent; seed it with any resumed prefix before transfer()
+    public TransferDigest getDigest() {
+        return digest;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return congestion;
+    }
+
+    private int sendWindow() {
+        return Math.min(windowSize, congestion.getWindow());
+    }
+
+    private void updatePacing() {
+        pacer.setRate(timer.getSmoothedRtt(), congestion.getWindow(), congestion.getPacingGain());
+    }
+
+    private boolean handleAck(Packet ack) {
+        long now = System.nanoTime();
+        long cumulative = ack.getSequenceNumber();
+        int newlyAcked = markAcked(base, cumulative + 1);
+
+        if (ack.getPayloadLength() > 0 && (selectiveRepeat || sackVersion > SelectiveAck.LEGACY)) {
+            SelectiveAck sack = SelectiveAck.parse(ack, sackVersion);
+            for (int i = 0; sack != null && i < sack.getBlockCount(); i++) {
+                newlyAcked += markAcked(sack.getStart(i), sack.getEnd(i));
+                highestSacked = Math.max(highestSacked, Math.min(sack.getEnd(i), nextSeq) - 1);
+            }
+        }
+
+        // The newest segment this ACK covered triggered it, so it's a clean sample unless resent
+        if (newestAckedAt != Long.MIN_VALUE) {
+            timer.onSample(now - newestAckedAt);
+            metrics.onRttSample(now - newestAckedAt);
+            newestAckedAt = Long.MIN_VALUE;
+        }
+
+        // Slide the window past every acknowledged segment at its left edge
+        long oldBase = base;
+        while (base < nextSeq && acked[slot(base)]) {
+            inFlight[slot(base)] = null;
+            base++;
+        }
+        if (base != oldBase) {
+            duplicateAcks = 0;
+        } else if (base < nextSeq && cumulative == base - 1) {
+            duplicateAcks++;
+        }
+
+        lastAckAt = now;
+        if (newlyAcked > 0) {
+            congestion.onAck(newlyAcked, timer.getSmoothedRtt());
+            updatePacing();
+        }
+        return newlyAcked > 0;
+    }
+
+    // Marks [from, to) acknowledged within the window; returns how many weren't already
+    private int markAcked(long from, long to) {
+        int marked = 0;
+        for (long seq = Math.max(from, base); seq < to && seq < nextSeq; seq++) {
+            int slot = slot(seq);
+            if (!acked[slot]) {
+                acked[slot] = true;
+                marked++;
+                metrics.onDelivered(inFlight[slot].getPayloadLength());
+                if (fec != null) {
+                    // Anything acknowledged behind a SACKed segment was lost (or reordered) and repaired
+                    fec.onAcked(retransmitted[slot] || seq < highestSacked);
+                }
+                if (!retransmitted[slot]) {
+                    newestAckedAt = Math.max(newestAckedAt, sentAt[slot]);
+                }
+            }
+        }
+        return marked;
+    }
+
+    // Called before a segment is resent
+    private void signalLoss(long seq) {
+        long now = System.nanoTime();
+        if (now - lastAckAt >= timer.getTimeout() * 1_000_000L) {
+            congestion.onTimeout();
+            recoveryEnd = nextSeq;
+        } else if (seq >= recoveryEnd) {
+            congestion.onLoss();
+            recoveryEnd = nextSeq;
+        }
+        updatePacing();
+    }
+
+    // Resends, once, every hole that has enough SACKed segments above it to count as lost
+    private void retransmitHoles() throws IOException {
+        int sackedAbove = 0;
+        boolean lossSignalled = false;
+        channel.beginBatch();
+        try {
+            // The window is stuck on a hole in a block that can't fill up, so its parity goes now
+            if (fec != null && base >= fec.getBlockStart() && highestSacked > base && nextSeq >= base + sendWindow()) {
+                sendParity();
+            }
+            for (long seq = Math.min(highestSacked, nextSeq - 1); seq >= base; seq--) {
+                int slot = slot(seq);
+                if (acked[slot]) {
+                    sackedAbove++;
+                } else if (sackedAbove >= DUPLICATE_ACK_THRESHOLD && !retransmitted[slot] && (fec == null || highestSacked >= blockEnd[slot])) {
+                    if (!lossSignalled) {
+                        signalLoss(seq);
+                        lossSignalled = true;
+                    }
+                    retransmitted[slot] = true;
+                    transmit(slot);
+                }
+            }
+        } finally {
+            channel.flush();
+        }
+    }
+
+    private void fastRetransmit() throws IOException {
+        int slot = slot(base);
+        signalLoss(base);
+        retransmitted[slot] = true;
+        transmit(slot);
+    }
+
+    // Returns how many segments were resent
+    private int retransmitExpired() throws IOException {
+        channel.beginBatch();
+        try {
+            return resendExpired();
+        } finally {
+            channel.flush();
+        }
+    }
+
+    private int resendExpired() throws IOException {
+        long now = System.nanoTime();
+        long rtoNanos = timer.getTimeout() * 1_000_000L;
+        int resent = 0;
+
+        if (!selectiveRepeat) {
+            // Go-Back-N runs one timer on the oldest segment and resends what the congestion window allows behind it
+            if (base < nextSeq && now - sentAt[slot(base)] >= rtoNanos) {
+                signalLoss(base);
+                long limit = Math.min(nextSeq, base + sendWindow());
+                for (long seq = base; seq < limit; seq++) {
+                    int slot = slot(seq);
+                    if (!acked[slot]) {
+                        retransmitted[slot] = true;
+                        transmit(slot);
+                        resent++;
+                    }
+                }
+            }
+            return resent;
+        }
+
+        for (long seq = base; seq < nextSeq; seq++) {
+            int slot = slot(seq);
+            if (!acked[slot] && now - sentAt[slot] >= rtoNanos) {
+                if (resent == 0) {
+                    signalLoss(seq);
+                }
+                retransmitted[slot] = true;
+                transmit(slot);
+                resent++;
+            }
+        }
+        return resent;
+    }
+
+    private long millisUntilNextEvent(boolean eof) {
+        long expiry = millisUntilNextExpiry();
+        if (eof || nextSeq >= base + sendWindow()) {
+            return expiry;
+        }
+        long paced = pacer.millisUntilReady(System.nanoTime());
+        return (paced > 0) ? Math.min(expiry, paced) : expiry;
+    }
+
+    private long millisUntilNextExpiry() {
+        long oldest = Long.MAX_VALUE;
+        for (long seq = base; seq < nextSeq; seq++) {
+            int slot = slot(seq);
+            if (!acked[slot]) {
+                oldest = Math.min(oldest, sentAt[slot]);
+                if (!selectiveRepeat) {
+                    break;
+                }
+            }
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return timer.getTimeout();
+        }
+        long dueNanos = oldest + timer.getTimeout() * 1_000_000L - System.nanoTime();
+        return Math.max(1, (dueNanos + 999_999) / 1_000_000);
+    }
+
+    private void transmit(int slot) throws IOException {
+        if (retransmitted[slot]) {
+            metrics.onRetransmission();
+        }
+        Packet packet = inFlight[slot];
+        if (splitLevel > 0 && packet.getPayloadLength() > SegmentParts.partSize(segmentSize, splitLevel)) {
+            SegmentParts.send(channel, packet, segmentSize, splitLevel);
+        } else {
+            channel.send(packet);
+        }
+        sentAt[slot] = System.nanoTime();
+    }
+
+    private int slot(long seq) {
+        return (int) Math.floorMod(seq, (long) windowSize);
+    }
+}
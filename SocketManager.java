@@ -10,33 +10,191 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+
+public class SocketManager implements Transport {
+    // Bounds for the adaptive retransmission timeout
+    public static final long MIN_RTO_MILLIS = 50;
+    public static final long MAX_RTO_MILLIS = 8000;
 
-public class SocketManager {
     private DatagramSocket socket;
     
     private int timeout;
+    private int currentSoTimeout;
+
+    // Per-thread encode buffer and datagram, so sendPacket doesn't allocate on every call
+    private static final class SendBuffer {
+        final byte[] data = new byte[Packet.MAX_MTU];
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final DatagramPacket datagram = new DatagramPacket(data, data.length);
+    }
+    private final ThreadLocal<SendBuffer> sendBuffers = ThreadLocal.withInitial(SendBuffer::new);
+
+    // Receive buffer for receiveBatch(), owned by the receiving thread
+    private final byte[] batchData = new byte[Packet.MAX_MTU];
+    private final DatagramPacket batchDatagram = new DatagramPacket(batchData, batchData.length);
+    private final ByteBuffer batchBuffer = ByteBuffer.wrap(batchData);
+    private final PacketView batchView = new PacketView();
+
+    // Datagrams and bytes in each direction, and malformed datagrams dropped
+    private final TransferMetrics metrics = new TransferMetrics();
+
+    private final boolean reusePort;
 
     public SocketManager(int port, int timeout) throws SocketException {
-        this.socket = new DatagramSocket(port);
+        this(port, timeout, false);
+    }
+
+    // With 'reusePort' other sockets may bind the same port (see openShard); it is off by default
+    // so a second server on a port in use still fails to start
+    public SocketManager(int port, int timeout, boolean reusePort) throws SocketException {
+        this.socket = new DatagramSocket(null);
+        if (reusePort) {
+            if (!supportsReusePort()) {
+                socket.close();
+                throw new SocketException("SO_REUSEPORT is not supported on this platform");
+            }
+            try {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } catch (IOException e) {
+                socket.close();
+                throw new SocketException("Can't set SO_REUSEPORT: " + e.getMessage());
+            }
+        }
+        try {
+            socket.bind(new InetSocketAddress(port));
+        } catch (SocketException e) {
+            socket.close();
+            throw e;
+        }
+        this.reusePort = reusePort;
         this.timeout = timeout;
         this.socket.setSoTimeout(timeout); 
+        this.currentSoTimeout = timeout;
     }
 
+    @Override
     public void sendPacket(Packet packet, InetAddress address, int port) throws IOException {
-        byte[] data = packet.toByteArray(); 
-        DatagramPacket datagram = new DatagramPacket(data, data.length, address, port);
-        socket.send(datagram);
+        SendBuffer send = sendBuffers.get();
+        send.buffer.clear();
+        packet.writeTo(send.buffer);
+        send.datagram.setData(send.data, 0, send.buffer.position());
+        send.datagram.setAddress(address);
+        send.datagram.setPort(port);
+        socket.send(send.datagram);
+        metrics.onPacketSent(send.datagram.getLength());
     }
 
+    @Override
     public Packet receivePacket(DatagramPacket incoming) throws IOException {
+        return receivePacket(incoming, timeout);
+    }
+
+    // Receives with a per-call timeout, e.g. the current RTO of a RetransmissionTimer
+    @Override
+    public Packet receivePacket(DatagramPacket incoming, long timeoutMillis) throws IOException {
+        // Truncated or corrupt datagrams are counted and dropped; keep waiting out the rest of the timeout
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (receiveDatagram(incoming, timeoutMillis)) {
+            try {
+                return Packet.fromByteArray(incoming.getData(), incoming.getOffset(), incoming.getLength());
+            } catch (IllegalArgumentException e) {
+                metrics.onMalformed();
+            }
+            timeoutMillis = (deadline - System.nanoTime()) / 1_000_000L;
+            if (timeoutMillis <= 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    // A blocking socket can't tell what else is ready, so a "batch" is a single datagram
+    @Override
+    public int receiveBatch(ReceiveHandler handler, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (true) {
+            batchDatagram.setLength(batchData.length);
+            if (!receiveDatagram(batchDatagram, timeoutMillis)) {
+                return 0;
+            }
+            batchBuffer.clear().limit(batchDatagram.getLength());
+            try {
+                batchView.wrap(batchBuffer);
+            } catch (IllegalArgumentException e) {
+                metrics.onMalformed();
+                timeoutMillis = (deadline - System.nanoTime()) / 1_000_000L;
+                if (timeoutMillis <= 0) {
+                    return 0;
+                }
+                continue;
+            }
+            handler.onPacket(batchView, (InetSocketAddress) batchDatagram.getSocketAddress());
+            return 1;
+        }
+    }
+
+    private boolean receiveDatagram(DatagramPacket incoming, long timeoutMillis) throws IOException {
+        int wait = (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeoutMillis));
+        if (wait != currentSoTimeout) {
+            socket.setSoTimeout(wait);
+            currentSoTimeout = wait;
+        }
         try {
             socket.receive(incoming);
-            return Packet.fromByteArray(incoming.getData());
+            metrics.onPacketReceived(incoming.getLength());
+            return true;
         } catch (SocketTimeoutException e) {
-            return null; 
+            return false; 
+        }
+    }
+
+    // A fresh per-session retransmission timer, starting from this socket's configured timeout
+    @Override
+    public RetransmissionTimer newRetransmissionTimer() {
+        return new RetransmissionTimer(timeout, MIN_RTO_MILLIS, MAX_RTO_MILLIS);
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public Transport openEphemeral() throws IOException {
+        return new SocketManager(0, timeout);
+    }
+
+    @Override
+    public Transport openShard() throws IOException {
+        if (!reusePort) {
+            throw new IOException("Socket was opened without SO_REUSEPORT");
         }
+        return new SocketManager(getLocalPort(), timeout, true);
+    }
+
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    public static boolean supportsReusePort() {
+        try (DatagramSocket probe = new DatagramSocket(null)) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    // Datagrams dropped because they were truncated or failed their checksum
+    public long getMalformedCount() {
+        return metrics.getMalformed();
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
     }
 
+    @Override
     public void close() {
         socket.close();
     }
@@ -0,0 +1,78 @@
+/*
+ * SegmentStore for sinks that can only be written in order (OutputStreams, pipes, channels).
+ * Segments that arrive early wait in memory until the gap before them is filled; that is at most
+ * one window of them, since the ReceiveWindow drops anything beyond it.
+ * A slow sink holds up the receiver, and with it the cumulative ACK, so the sender slows down
+ * with it instead of the data piling up here.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.TreeMap;
+
+public class StreamSegmentStore implements SegmentStore {
+    private final OutputStream out;     // one of these two is set
+    private final WritableByteChannel channel;
+    private final TreeMap<Long, Packet> outOfOrder = new TreeMap<>();
+    private long next = 0;
+
+    public StreamSegmentStore(OutputStream out) {
+        this.out = out;
+        this.channel = null;
+    }
+
+    // The channel must be in blocking mode; close() leaves it open for the caller
+    public StreamSegmentStore(WritableByteChannel channel) {
+        this.out = null;
+        this.channel = channel;
+    }
+
+    @Override
+    public boolean store(long index, Packet packet) throws IOException {
+        if (index < next) {
+            return false;
+        }
+        if (index > next) {
+            return outOfOrder.putIfAbsent(index, packet) == null;
+        }
+
+        write(packet);
+        next++;
+
+        // Deliver anything that was waiting on this segment
+        Packet waiting;
+        while ((waiting = outOfOrder.remove(next)) != null) {
+            write(waiting);
+            next++;
+        }
+        return true;
+    }
+
+    private void write(Packet packet) throws IOException {
+        if (channel == null) {
+            packet.writePayloadTo(out);
+            return;
+        }
+        ByteBuffer payload = packet.getPayloadBuffer();
+        while (payload.hasRemaining()) {
+            channel.write(payload);
+        }
+    }
+
+    @Override
+    public long contiguousCount() {
+        return next;
+    }
+
+    public int getBufferedCount() {
+        return outOfOrder.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
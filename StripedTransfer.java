@@ -0,0 +1,161 @@
+/*
+ * One file moved over several sessions at once ("stripes"), each on its own flow and thread.
+ * - Stripe i covers the segment range [total * i / N, total * (i + 1) / N); segment k keeps
+ *   sequence number (SYN seq + k) in whichever stripe carries it
+ * - The receiving end shares one SegmentFileWriter between the stripes; each stripe sees it
+ *   through a Stripe view that tracks its own contiguous prefix for its ReceiveWindow
+ * - The file is finished (trimmed, synced, checkpoint removed) when the last stripe completes,
+ *   and closed once every attached stripe has let go of it
+ */
+
+import java.io.*;
+
+public class StripedTransfer {
+    private final SegmentFileWriter writer;
+    private final long totalSegments;
+    private final int stripeCount;
+    private final Runnable onClose;
+    private final boolean[] completed;
+
+    private int completedCount = 0;
+    private int attached = 0;
+    private boolean closed = false;
+
+    public StripedTransfer(SegmentFileWriter writer, long totalSegments, int stripeCount, Runnable onClose) {
+        this.writer = writer;
+        this.totalSegments = totalSegments;
+        this.stripeCount = stripeCount;
+        this.onClose = onClose;
+        this.completed = new boolean[stripeCount];
+    }
+
+    // --- Stripe Layout ---
+    public static long segmentCount(long bytes, int segmentSize) {
+        return (bytes + segmentSize - 1) / segmentSize;
+    }
+
+    public static long firstSegment(long totalSegments, int stripeCount, int stripe) {
+        return totalSegments * stripe / stripeCount;
+    }
+
+    public static long endSegment(long totalSegments, int stripeCount, int stripe) {
+        return firstSegment(totalSegments, stripeCount, stripe + 1);
+    }
+
+    // --- Receiving Side ---
+
+    // A stripe's session joins the transfer; null once the transfer has already been closed
+    public synchronized Stripe attach(int stripe) {
+        if (closed || stripe < 0 || stripe >= stripeCount) {
+            return null;
+        }
+        attached++;
+        return new Stripe(stripe, firstSegment(totalSegments, stripeCount, stripe), endSegment(totalSegments, stripeCount, stripe));
+    }
+
+    // Called on a stripe's FIN. Returns false if the stripe still has gaps; the last stripe to
+    // complete also finishes the file, so its FIN is only acknowledged once everything is on disk.
+    public synchronized boolean complete(Stripe stripe) throws IOException {
+        if (!stripe.isComplete()) {
+            return false;
+        }
+        if (!completed[stripe.index]) {
+            completed[stripe.index] = true;
+            completedCount++;
+        }
+        return completedCount < stripeCount || writer.finish(totalSegments);
+    }
+
+    public synchronized boolean isComplete() {
+        return completedCount == stripeCount;
+    }
+
+    // A stripe's session is done with the file; the last one closes it
+    public synchronized void release() throws IOException {
+        if (--attached > 0 || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.close();
+        } finally {
+            onClose.run();
+        }
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    public int getSegmentSize() {
+        return writer.getSegmentSize();
+    }
+
+    public long getTotalSegments() {
+        return totalSegments;
+    }
+
+    // The part of the shared file one stripe writes; not closed on its own (see release())
+    public final class Stripe implements SegmentStore {
+        private final int index;
+        private final long first;
+        private final long end;
+        private long contiguous;
+
+        private Stripe(int index, long first, long end) {
+            this.index = index;
+            this.first = first;
+            this.end = end;
+            this.contiguous = first;
+        }
+
+        @Override
+        public boolean store(long segment, Packet packet) throws IOException {
+            if (segment < first || segment >= end) {
+                return false;
+            }
+            return writer.store(segment, packet);
+        }
+
+        // Segments [0, n) count as present for this stripe's window once its own range is filled up to n
+        @Override
+        public long contiguousCount() {
+            if (contiguous < end) {
+                contiguous = Math.min(end, writer.nextMissing(contiguous));
+            }
+            return contiguous;
+        }
+
+        public boolean isComplete() {
+            return contiguousCount() >= end;
+        }
+
+        // Only this stripe's own range; the others are hashed by their own sessions
+        @Override
+        public boolean digestSegments(TransferDigest digest, long from, long to) throws IOException {
+            return writer.digestSegments(digest, Math.max(from, first), Math.min(to, end));
+        }
+
+        // One corrupt stripe spoils the whole file
+        @Override
+        public void abandon() throws IOException {
+            writer.abandon();
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getFirstSegment() {
+            return first;
+        }
+
+        public long getEndSegment() {
+            return end;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Receiving end of a SYNC bundle: splits the in-order byte stream (see SyncManifest.bundle)
+ * back into the changed files.
+ * - Each file is written to a temporary sibling, checked against the manifest's SHA-256, then
+ *   moved over the old copy and given the sender's mtime, so no one ever sees half a file
+ * - A file whose content doesn't match (it changed while the sender was reading it) is
+ *   discarded and counted in getFailed(); the rest of the bundle is unaffected
+ * - Bytes beyond the last file are an IOException
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class SyncBundleWriter extends OutputStream {
+    private static final String TEMP_SUFFIX = ".sync-part";
+
+    private final Path root;
+    private final SyncManifest manifest;
+    private final BitSet changed;
+
+    private int index;
+    private SyncManifest.Entry entry;
+    private Path temp;
+    private OutputStream out;
+    private TransferDigest digest;
+    private long remaining;
+    private int written;
+    private int failed;
+
+    public SyncBundleWriter(Path root, SyncManifest manifest, BitSet changed) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.manifest = manifest;
+        this.changed = changed;
+        this.index = changed.nextSetBit(0);
+        Files.createDirectories(this.root);
+        // Files that take no bytes are finished before the first one arrives
+        startNext();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (entry == null) {
+                throw new IOException("Sync bundle is longer than its manifest");
+            }
+            int n = (int) Math.min(len, remaining);
+            out.write(b, off, n);
+            digest.update(ByteBuffer.wrap(b, off, n));
+            off += n;
+            len -= n;
+            remaining -= n;
+            if (remaining == 0) {
+                finishFile();
+                startNext();
+            }
+        }
+    }
+
+    // Opens the next file that has bytes to come, finishing empty ones on the way
+    private void startNext() throws IOException {
+        while (index >= 0) {
+            entry = manifest.getEntries().get(index);
+            index = changed.nextSetBit(index + 1);
+            Path file = SyncManifest.resolve(root, entry);
+            Files.createDirectories(file.getParent());
+            temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+            out = new BufferedOutputStream(Files.newOutputStream(temp));
+            digest = new TransferDigest();
+            remaining = entry.size;
+            if (remaining > 0) {
+                return;
+            }
+            finishFile();
+        }
+        entry = null;
+    }
+
+    private void finishFile() throws IOException {
+        out.close();
+        out = null;
+        Path file = SyncManifest.resolve(root, entry);
+        if (!Arrays.equals(digest.finish(), entry.getSha256())) {
+            System.out.println("Sync: " + entry.path + " changed while it was sent; discarded.");
+            Files.deleteIfExists(temp);
+            failed++;
+        } else {
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(entry.modified));
+            written++;
+        }
+        temp = null;
+        entry = null;
+    }
+
+    // True once every changed file has arrived (verified or not)
+    public boolean isComplete() {
+        return entry == null && index < 0;
+    }
+
+    public int getWritten() {
+        return written;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    // Drops a file left half-written
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            Files.deleteIfExists(temp);
+        }
+    }
+}
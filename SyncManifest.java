@@ -0,0 +1,328 @@
+/*
+ * The file list a SYNC session starts with: every regular file under a directory, with its size,
+ * modification time and SHA-256.
+ * - scan() walks the directory on the calling thread and hashes the files on a pool as they are
+ *   found, so the walk and the hashing overlap; entries come back sorted by path
+ * - Paths are relative and '/'-separated; decode() rejects any that would leave the directory
+ * - Encoded as [count:4] then per entry [path:UTF][size:8][mtime:8][sha-256:32]
+ * - changedIn() is the receiving side's comparison: a file with the same size and mtime is taken
+ *   as unchanged without reading it; same size but another mtime is hashed, and if the content
+ *   matches only its mtime is updated
+ * - bundle() is the sending side's data: the changed files back to back, each exactly as long as
+ *   the manifest says, so small files share segments instead of costing a session each
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SyncManifest {
+    public static final int MAX_ENCODED_BYTES = 64 << 20;
+
+    public static final class Entry {
+        public final String path;
+        public final long size;
+        public final long modified;
+        private final byte[] sha256;
+
+        Entry(String path, long size, long modified, byte[] sha256) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+        }
+
+        public byte[] getSha256() {
+            return sha256.clone();
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private SyncManifest(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Total bytes of the entries set in 'changed'
+    public long bytes(BitSet changed) {
+        long total = 0;
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            total += entries.get(i).size;
+        }
+        return total;
+    }
+
+    // --- Scanning ---
+
+    public static SyncManifest scan(Path directory, int threads) throws IOException {
+        Path root = directory.toAbsolutePath().normalize();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Entry>> hashed = new ArrayList<>();
+            // Symbolic links are not followed, and only regular files are listed
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                        long size = attrs.size();
+                        long modified = attrs.lastModifiedTime().toMillis();
+                        hashed.add(pool.submit(() -> new Entry(path, size, modified, sha256(file, size))));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            List<Entry> entries = new ArrayList<>(hashed.size());
+            for (Future<Entry> entry : hashed) {
+                entries.add(await(entry));
+            }
+            entries.sort(Comparator.comparing(e -> e.path));
+            return new SyncManifest(entries);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static byte[] sha256(Path file, long size) throws IOException {
+        TransferDigest digest = new TransferDigest();
+        digest.update(file, 0, size);
+        return digest.finish();
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // --- Serialization ---
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeUTF(entry.path);
+            out.writeLong(entry.size);
+            out.writeLong(entry.modified);
+            out.write(entry.sha256);
+        }
+        out.flush();
+        if (bytes.size() > MAX_ENCODED_BYTES) {
+            throw new IOException("Manifest of " + entries.size() + " files is larger than " + MAX_ENCODED_BYTES + " bytes");
+        }
+        return bytes.toByteArray();
+    }
+
+    // Malformed input, or a path that could leave the directory, is an IllegalArgumentException
+    public static SyncManifest decode(byte[] encoded) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+            int count = in.readInt();
+            // Every entry takes at least 50 bytes, which bounds what a bogus count can allocate
+            if (count < 0 || count > encoded.length / 50) {
+                throw new IllegalArgumentException("Invalid manifest entry count: " + count);
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String path = checkPath(in.readUTF());
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] sha256 = new byte[TransferDigest.LENGTH];
+                in.readFully(sha256);
+                if (size < 0) {
+                    throw new IllegalArgumentException("Invalid size for " + path + ": " + size);
+                }
+                entries.add(new Entry(path, size, modified, sha256));
+            }
+            if (in.available() > 0) {
+                throw new IllegalArgumentException("Trailing bytes after " + count + " manifest entries");
+            }
+            return new SyncManifest(entries);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated manifest", e);
+        }
+    }
+
+    private static String checkPath(String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException("Invalid manifest path: " + path);
+        }
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IllegalArgumentException("Invalid manifest path: " + path);
+            }
+        }
+        return path;
+    }
+
+    // Where an entry lives under 'root'; checkPath() already keeps it inside
+    static Path resolve(Path root, Entry entry) {
+        Path file = root.resolve(entry.path).normalize();
+        if (!file.startsWith(root.normalize())) {
+            throw new IllegalArgumentException("Manifest path leaves the directory: " + entry.path);
+        }
+        return file;
+    }
+
+    // --- Receiving Side ---
+
+    // The entries whose copy under 'target' is missing or differs
+    public BitSet changedIn(Path target, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                results.add(pool.submit(() -> isChanged(target, entry)));
+            }
+            BitSet changed = new BitSet(entries.size());
+            for (int i = 0; i < results.size(); i++) {
+                if (await(results.get(i))) {
+                    changed.set(i);
+                }
+            }
+            return changed;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static boolean isChanged(Path target, Entry entry) throws IOException {
+        Path file = resolve(target, entry);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        if (!attrs.isRegularFile() || attrs.size() != entry.size) {
+            return true;
+        }
+        if (attrs.lastModifiedTime().toMillis() == entry.modified) {
+            return false;
+        }
+        // Touched but maybe not changed: compare the content before asking for it
+        if (!Arrays.equals(sha256(file, entry.size), entry.sha256)) {
+            return true;
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(entry.modified));
+        return false;
+    }
+
+    // Collects an incoming manifest, refusing to grow past MAX_ENCODED_BYTES
+    public static final class Receiver extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (bytes.size() + len > MAX_ENCODED_BYTES) {
+                throw new IOException("Manifest is larger than " + MAX_ENCODED_BYTES + " bytes");
+            }
+            bytes.write(b, off, len);
+        }
+
+        public SyncManifest decode() {
+            return SyncManifest.decode(bytes.toByteArray());
+        }
+    }
+
+    // --- Sending Side ---
+
+    // The changed entries' bytes back to back. A file that shrank since the scan is padded with
+    // zeros and one that grew is cut short, so the receiver's offsets stay right; either way its
+    // SHA-256 no longer matches and the receiver discards it.
+    public ReadableByteChannel bundle(Path directory, BitSet changed) {
+        Path root = directory.toAbsolutePath().normalize();
+        return new ReadableByteChannel() {
+            private int index = changed.nextSetBit(0);
+            private FileChannel file;
+            private long remaining = (index >= 0) ? entries.get(index).size : 0;
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int total = 0;
+                while (dst.hasRemaining() && index >= 0) {
+                    if (remaining == 0) {
+                        closeFile();
+                        index = changed.nextSetBit(index + 1);
+                        remaining = (index >= 0) ? entries.get(index).size : 0;
+                        continue;
+                    }
+                    if (file == null) {
+                        file = FileChannel.open(resolve(root, entries.get(index)), StandardOpenOption.READ);
+                    }
+                    int limit = dst.limit();
+                    dst.limit(dst.position() + (int) Math.min(dst.remaining(), remaining));
+                    int n;
+                    try {
+                        n = file.read(dst);
+                    } finally {
+                        dst.limit(limit);
+                    }
+                    if (n < 0) {
+                        // Shrank since the scan
+                        n = (int) Math.min(dst.remaining(), remaining);
+                        dst.put(new byte[n]);
+                    }
+                    remaining -= n;
+                    total += n;
+                }
+                return (total == 0 && index < 0) ? -1 : total;
+            }
+
+            private void closeFile() throws IOException {
+                if (file != null) {
+                    file.close();
+                    file = null;
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                open = false;
+                closeFile();
+            }
+        };
+    }
+}
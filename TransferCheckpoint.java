@@ -0,0 +1,94 @@
+/*
+ * Sidecar file ("<target>.ckpt") recording how much of a received file is safely on disk.
+ * - Written by SegmentFileWriter every time it syncs, and once more when a transfer is abandoned
+ * - Records the source's size and modification time, so a resume against a changed
+ *   source starts over instead of splicing two versions together
+ * - Replaced atomically (write to a temp file, then rename), so a crash mid-write
+ *   leaves the previous checkpoint intact
+ * - Deleted once the transfer finishes cleanly
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+public class TransferCheckpoint {
+    private static final String SUFFIX = ".ckpt";
+
+    private final Path path;
+    private final long sourceSize;
+    private final long sourceModified;
+    private long durableOffset;
+
+    public TransferCheckpoint(Path target, long sourceSize, long sourceModified) {
+        this.path = sidecarFor(target);
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+    }
+
+    // Reads the checkpoint next to 'target', or returns null if there is none (or it is unreadable)
+    public static TransferCheckpoint load(Path target) {
+        Path sidecar = sidecarFor(target);
+        if (!Files.exists(sidecar)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(sidecar)) {
+            props.load(in);
+            TransferCheckpoint checkpoint = new TransferCheckpoint(target,
+                    Long.parseLong(props.getProperty("size")),
+                    Long.parseLong(props.getProperty("mtime")));
+            checkpoint.durableOffset = Long.parseLong(props.getProperty("offset"));
+            return checkpoint;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable checkpoint " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Offset the next transfer can resume from: only if the source is unchanged and the data is still there
+    public long resumeOffset(long size, long modified, Path target) {
+        if (size != sourceSize || modified != sourceModified) {
+            return 0;
+        }
+        try {
+            return Math.min(durableOffset, Files.size(target));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public void save(long offset) throws IOException {
+        this.durableOffset = offset;
+        Properties props = new Properties();
+        props.setProperty("size", Long.toString(sourceSize));
+        props.setProperty("mtime", Long.toString(sourceModified));
+        props.setProperty("offset", Long.toString(offset));
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            props.store(out, "transfer checkpoint");
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    public long getDurableOffset() {
+        return durableOffset;
+    }
+    public long getSourceSize() {
+        return sourceSize;
+    }
+    public long getSourceModified() {
+        return sourceModified;
+    }
+
+    private static Path sidecarFor(Path target) {
+        return target.resolveSibling(target.getFileName() + SUFFIX);
+    }
+}
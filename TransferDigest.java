@@ -0,0 +1,102 @@
+/*
+ * Running SHA-256 of the bytes one session delivers, exchanged in the FIN and its ACK.
+ * - The sender feeds segments as they are first handed out; the receiver feeds them
+ *   as its contiguous prefix grows, so both see the same bytes in the same order
+ * - A resumed single-session transfer also covers the prefix kept from the earlier session
+ *   (read back from the file on both sides); a stripe covers only its own range
+ * - The FIN payload is the sender's digest, the ACK payload the receiver's; every peer of this
+ *   wire format sends one, so a missing or short digest counts as a mismatch
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class TransferDigest {
+    public static final int LENGTH = 32;
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private final MessageDigest digest;
+    private byte[] result;
+
+    public TransferDigest() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every JDK", e);
+        }
+    }
+
+    // Hashes the bytes between position and limit without moving the buffer's position
+    public void update(ByteBuffer bytes) {
+        int position = bytes.position();
+        digest.update(bytes);
+        bytes.position(position);
+    }
+
+    // Hashes bytes [from, to) of a file, e.g. the prefix a resumed transfer keeps
+    public void update(Path file, long from, long to) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK);
+            long position = from;
+            while (position < to) {
+                buffer.clear().limit((int) Math.min(READ_CHUNK, to - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException("File ended at " + position + " while hashing up to " + to);
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += n;
+            }
+        }
+    }
+
+    // Hashes every segment the source hands out, in order
+    public SegmentSource wrap(SegmentSource source) {
+        return new SegmentSource() {
+            @Override
+            public ByteBuffer next() throws IOException {
+                ByteBuffer segment = source.next();
+                if (segment != null) {
+                    update(segment);
+                }
+                return segment;
+            }
+
+            @Override
+            public int flags() {
+                return source.flags();
+            }
+        };
+    }
+
+    // Completes the digest; later calls return the same value
+    public byte[] finish() {
+        if (result == null) {
+            result = digest.digest();
+        }
+        return result.clone();
+    }
+
+    // True only if the peer sent a digest and it equals ours
+    public boolean matches(Packet packet) {
+        if (packet.getPayloadLength() != LENGTH) {
+            return false;
+        }
+        return Arrays.equals(finish(), packet.getPayload());
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Counters and latency histograms for one session, one transport or a whole server.
+ * - Counters are LongAdders, so recording on the packet path costs a few nanoseconds and never blocks
+ * - A session's metrics also add into their parent's (the server's or the client's totals)
+ * - RTT samples (the same ones the RetransmissionTimer gets) and handshake times go into
+ *   LatencyHistograms
+ * - Goodput is DATA payload delivered per second of the metrics' lifetime: payload the peer
+ *   acknowledged when sending, payload newly stored when receiving. With compression agreed it
+ *   counts the compressed bytes
+ * - With FEC agreed, PARITY packets sent and DATA segments rebuilt from them are counted too
+ * - snapshot() copies everything at once; reportEvery() hands a snapshot to a callback periodically
+ * - register() publishes the metrics as a JMX MBean until close()
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class TransferMetrics implements TransferMetricsMBean {
+    public static final String JMX_DOMAIN = "ReliableUdp";
+
+    private final TransferMetrics parent;
+    private final long createdAt = System.nanoTime();
+    private volatile long closedAt = 0; // nanos; 0 while open
+    private ObjectName registeredAs = null; // guarded by this
+
+    // --- Counters ---
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder outOfOrder = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder paritySent = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+
+    // --- Latencies ---
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final LatencyHistogram handshake = new LatencyHistogram();
+
+    public TransferMetrics() {
+        this(null);
+    }
+
+    public TransferMetrics(TransferMetrics parent) {
+        this.parent = parent;
+    }
+
+    // --- Recording (each call also adds into the parents) ---
+
+    // 'bytes' is the whole datagram, header included
+    public void onPacketSent(int bytes) {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.packetsSent.increment();
+            m.bytesSent.add(bytes);
+        }
+    }
+
+    public void onPacketReceived(int bytes) {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.packetsReceived.increment();
+            m.bytesReceived.add(bytes);
+        }
+    }
+
+    // A DATA segment sent again
+    public void onRetransmission() {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.retransmissions.increment();
+        }
+    }
+
+    // A retransmission timer that fired with nothing acknowledged
+    public void onTimeout() {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.timeouts.increment();
+        }
+    }
+
+    // A DATA segment that had already been received
+    public void onDuplicate() {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.duplicates.increment();
+        }
+    }
+
+    // A DATA segment stored beyond a gap
+    public void onOutOfOrder() {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.outOfOrder.increment();
+        }
+    }
+
+    // A datagram dropped because it was truncated or failed its checksum
+    public void onMalformed() {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.malformed.increment();
+        }
+    }
+
+    public void onDelivered(int payloadBytes) {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.delivered.add(payloadBytes);
+        }
+    }
+
+    public void onParitySent(int packets) {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.paritySent.add(packets);
+        }
+    }
+
+    // A lost DATA segment rebuilt from a PARITY packet instead of waiting for its retransmission
+    public void onRecovered() {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.recovered.increment();
+        }
+    }
+
+    public void onRttSample(long nanos) {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.rtt.recordNanos(nanos);
+        }
+    }
+
+    // From the first SYN to the SYN_ACK (client), or from the SYN's arrival to the SYN_ACK going out (server)
+    public void onHandshake(long nanos) {
+        for (TransferMetrics m = this; m != null; m = m.parent) {
+            m.handshake.recordNanos(nanos);
+        }
+    }
+
+    // --- JMX ---
+
+    // Publishes these metrics as "ReliableUdp:type=<type>,name=<name>"; a name already taken is reported and skipped
+    public synchronized void register(String type, String name) {
+        if (registeredAs != null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredAs = objectName;
+        } catch (JMException e) {
+            System.err.println("Metrics for " + name + " not published: " + e.getMessage());
+        }
+    }
+
+    // Stops the goodput clock and withdraws the MBean; the counters stay readable
+    public synchronized void close() {
+        if (closedAt == 0) {
+            closedAt = System.nanoTime();
+        }
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException e) {
+                // Already gone
+            }
+            registeredAs = null;
+        }
+    }
+
+    // --- Snapshots ---
+
+    // Calls 'sink' with a fresh snapshot every 'periodMillis' until the returned future is cancelled
+    public ScheduledFuture<?> reportEvery(long periodMillis, Consumer<Snapshot> sink) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Report period must be positive: " + periodMillis);
+        }
+        return Reporter.SCHEDULER.scheduleAtFixedRate(() -> sink.accept(snapshot()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Created on first use, so metrics that are never reported start no thread
+    private static final class Reporter {
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // Point-in-time copy of every counter and latency summary; times in milliseconds
+    public static final class Snapshot {
+        public final long elapsedNanos;
+        public final long packetsSent;
+        public final long packetsReceived;
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final long retransmissions;
+        public final long timeouts;
+        public final long duplicates;
+        public final long outOfOrder;
+        public final long malformed;
+        public final long deliveredBytes;
+        public final long paritySent;
+        public final long recovered;
+        public final long rttSamples;
+        public final double rttMeanMillis;
+        public final double rttP50Millis;
+        public final double rttP99Millis;
+        public final double rttMaxMillis;
+        public final long handshakes;
+        public final double handshakeMeanMillis;
+        public final double handshakeP99Millis;
+
+        private Snapshot(TransferMetrics m) {
+            elapsedNanos = m.elapsedNanos();
+            packetsSent = m.getPacketsSent();
+            packetsReceived = m.getPacketsReceived();
+            bytesSent = m.getBytesSent();
+            bytesReceived = m.getBytesReceived();
+            retransmissions = m.getRetransmissions();
+            timeouts = m.getTimeouts();
+            duplicates = m.getDuplicates();
+            outOfOrder = m.getOutOfOrder();
+            malformed = m.getMalformed();
+            deliveredBytes = m.getDeliveredBytes();
+            paritySent = m.getParitySent();
+            recovered = m.getRecovered();
+            rttSamples = m.getRttSamples();
+            rttMeanMillis = m.getRttMeanMillis();
+            rttP50Millis = m.getRttP50Millis();
+            rttP99Millis = m.getRttP99Millis();
+            rttMaxMillis = m.getRttMaxMillis();
+            handshakes = m.getHandshakes();
+            handshakeMeanMillis = m.getHandshakeMeanMillis();
+            handshakeP99Millis = m.getHandshakeP99Millis();
+        }
+
+        // Goodput over the whole lifetime
+        public double goodputBytesPerSecond() {
+            return (elapsedNanos <= 0) ? 0 : deliveredBytes * 1e9 / elapsedNanos;
+        }
+
+        // Goodput between an earlier snapshot of the same metrics and this one, for periodic reports
+        public double goodputSince(Snapshot earlier) {
+            long nanos = elapsedNanos - earlier.elapsedNanos;
+            return (nanos <= 0) ? 0 : (deliveredBytes - earlier.deliveredBytes) * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d pkts/%d B, received=%d pkts/%d B, retransmissions=%d, timeouts=%d, "
+                            + "duplicates=%d, out-of-order=%d, malformed=%d, parity=%d, recovered=%d, goodput=%.1f KB/s, "
+                            + "RTT mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms, handshake mean=%.2fms p99=%.2fms",
+                    packetsSent, bytesSent, packetsReceived, bytesReceived, retransmissions, timeouts,
+                    duplicates, outOfOrder, malformed, paritySent, recovered, goodputBytesPerSecond() / 1024,
+                    rttMeanMillis, rttP50Millis, rttP99Millis, rttMaxMillis, handshakeMeanMillis, handshakeP99Millis);
+        }
+    }
+
+    private long elapsedNanos() {
+        long end = closedAt;
+        return ((end != 0) ? end : System.nanoTime()) - createdAt;
+    }
+
+    // --- TransferMetricsMBean ---
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getOutOfOrder() {
+        return outOfOrder.sum();
+    }
+
+    @Override
+    public long getMalformed() {
+        return malformed.sum();
+    }
+
+    @Override
+    public long getDeliveredBytes() {
+        return delivered.sum();
+    }
+
+    @Override
+    public long getParitySent() {
+        return paritySent.sum();
+    }
+
+    @Override
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    @Override
+    public double getGoodputBytesPerSecond() {
+        long nanos = elapsedNanos();
+        return (nanos <= 0) ? 0 : delivered.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public long getRttSamples() {
+        return rtt.getCount();
+    }
+
+    @Override
+    public double getRttMeanMillis() {
+        return rtt.getMean() / 1000;
+    }
+
+    @Override
+    public double getRttP50Millis() {
+        return rtt.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getRttP99Millis() {
+        return rtt.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getRttMaxMillis() {
+        return rtt.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshake.getCount();
+    }
+
+    @Override
+    public double getHandshakeMeanMillis() {
+        return handshake.getMean() / 1000;
+    }
+
+    @Override
+    public double getHandshakeP99Millis() {
+        return handshake.getPercentile(99) / 1000.0;
+    }
+
+    public LatencyHistogram getRttHistogram() {
+        return rtt;
+    }
+
+    public LatencyHistogram getHandshakeHistogram() {
+        return handshake;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferMetrics{" + snapshot() + '}';
+    }
+}
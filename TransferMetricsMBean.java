@@ -0,0 +1,50 @@
+/*
+ * JMX view of a TransferMetrics (a session, a transport or a server's totals).
+ * - Published under "ReliableUdp:type=<Server|Session|Transport>,name=<...>" by TransferMetrics.register
+ * - Every attribute is read-only; times are in milliseconds, goodput in bytes per second
+ */
+
+public interface TransferMetricsMBean {
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmissions();
+
+    long getTimeouts();
+
+    long getDuplicates();
+
+    long getOutOfOrder();
+
+    long getMalformed();
+
+    long getDeliveredBytes();
+
+    long getParitySent();
+
+    long getRecovered();
+
+    double getGoodputBytesPerSecond();
+
+    long getRttSamples();
+
+    double getRttMeanMillis();
+
+    double getRttP50Millis();
+
+    double getRttP99Millis();
+
+    double getRttMaxMillis();
+
+    long getHandshakes();
+
+    double getHandshakeMeanMillis();
+
+    double getHandshakeP99Millis();
+}
@@ -0,0 +1,58 @@
+/*
+ * Datagram transport underneath the client, the server dispatcher and the sessions.
+ * - SocketManager: blocking java.net.DatagramSocket, one datagram per call
+ * - NioTransport: non-blocking DatagramChannel + Selector, drains every ready
+ *   datagram per wakeup and can flush queued sends as one batch
+ * - Either can be opened with SO_REUSEPORT and then sharded: openShard() binds another socket
+ *   to the same port, and the kernel hashes every client flow (address and port) to one of them
+ */
+
+import java.io.*;
+import java.net.*;
+
+public interface Transport {
+
+    // Receives the datagrams of one batch. The view is only valid until the callback returns.
+    interface ReceiveHandler {
+        void onPacket(PacketView packet, InetSocketAddress source) throws IOException;
+    }
+
+    void sendPacket(Packet packet, InetAddress address, int port) throws IOException;
+
+    // Same, for callers that keep their peer's address instead of building one per datagram
+    default void sendPacket(Packet packet, InetSocketAddress target) throws IOException {
+        sendPacket(packet, target.getAddress(), target.getPort());
+    }
+
+    // Returns the next packet (source address filled into 'incoming'), or null after the default timeout
+    Packet receivePacket(DatagramPacket incoming) throws IOException;
+
+    Packet receivePacket(DatagramPacket incoming, long timeoutMillis) throws IOException;
+
+    // Waits up to timeoutMillis for traffic, then hands every datagram that is ready to the handler.
+    // Returns how many were delivered. Callers use either this or receivePacket, not both.
+    int receiveBatch(ReceiveHandler handler, long timeoutMillis) throws IOException;
+
+    // Until flush(), sendPacket calls from this thread may be queued and written together
+    default void beginBatch() {
+    }
+
+    default void flush() throws IOException {
+    }
+
+    int getTimeout();
+
+    RetransmissionTimer newRetransmissionTimer();
+
+    // Another transport of the same kind on an ephemeral port, so a stripe gets its own flow
+    Transport openEphemeral() throws IOException;
+
+    // Another transport bound to this one's port, for a server that reads it from several threads.
+    // Only transports opened with SO_REUSEPORT can be sharded, and every shard must be open before
+    // traffic starts: the kernel reassigns flows whenever a socket joins or leaves the port.
+    default Transport openShard() throws IOException {
+        throw new IOException(getClass().getSimpleName() + " can't be sharded");
+    }
+
+    void close();
+}
@@ -0,0 +1,364 @@
+/*
+ * End-to-end benchmark: a ReliableServer and several ReliableClients transferring files over loopback.
+ * - Each run starts 'sessions' clients at once, each moving its own file of 'size' bytes
+ *   (upload or download); every transferred file is checked against its source
+ * - Both ends can sit behind a LinkEmulator for loss, one-way delay, reordering and a
+ *   bottleneck bandwidth, so recovery and congestion control are exercised too. Every client
+ *   has a link of its own; the server's link is shared by all sessions (one per receive shard)
+ * - Reports aggregate MB/s per run, p50/p99/max completion time of the sessions (LatencyHistogram),
+ *   and the allocation rate of the whole process: every thread's allocated-bytes counter is
+ *   sampled during the run, since JDK 17 has no process-wide one; also the DATA segments resent,
+ *   and those rebuilt from FEC parity instead
+ * - A plain main() with warmup runs rather than a JMH benchmark: one run moves whole files
+ *   between real sockets for seconds, which JMH's per-invocation model doesn't fit
+ * - Files are written to the working directory as bench_<n>.bin (and the client_/server_ copies)
+ *   and deleted afterwards, so run it from a scratch directory
+ *
+ * Run: mvn -B package && java -cp benchmarks/target/benchmarks.jar LoopbackBenchmark [key=value ...]
+ *   op=download|upload  size=8m  sessions=4  runs=3  warmup=1
+ *   loss=0.0  delay=0 (ms, each way)  reorder=0.0  reorderdelay=5 (ms)  bandwidth=0 (bytes/s, 0 = unlimited)  queue=256k
+ *   window=64  mode=SR|GBN  cc=cubic  stripes=1  compress=0  fec=0 (segments per parity block, 0 = off)
+ *   mtu=8972  cache=64m (0 = off)  nio=false  shards=1 (server sockets sharing the port)  port=12360
+ *   verbose=false (true keeps the client and server's own output)
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoopbackBenchmark {
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    private final Map<String, String> settings;
+    private final boolean upload;
+    private final long size;
+    private final int sessions;
+    private final double loss;
+    private final long delayMillis;
+    private final double reorderRate;
+    private final long reorderMillis;
+    private final long bandwidth;
+    private final long queueBytes;
+    private final int port;
+    private final LongAdder clientRetransmissions = new LongAdder();
+    private final LongAdder clientRecovered = new LongAdder();
+
+    private LoopbackBenchmark(Map<String, String> settings) {
+        this.settings = settings;
+        String op = text("op", "download");
+        if (!op.equals("download") && !op.equals("upload")) {
+            throw new IllegalArgumentException("op must be download or upload: " + op);
+        }
+        this.upload = op.equals("upload");
+        this.size = bytes("size", "8m");
+        this.sessions = (int) number("sessions", 4);
+        this.loss = Double.parseDouble(text("loss", "0"));
+        this.delayMillis = number("delay", 0);
+        this.reorderRate = Double.parseDouble(text("reorder", "0"));
+        this.reorderMillis = number("reorderdelay", 5);
+        this.bandwidth = bytes("bandwidth", "0");
+        this.queueBytes = bytes("queue", "256k");
+        this.port = (int) number("port", 12360);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            settings.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+        }
+        new LoopbackBenchmark(settings).run();
+        System.exit(0); // the server's dispatcher and worker threads are not daemons
+    }
+
+    private void run() throws Exception {
+        PrintStream console = System.out;
+        int runs = (int) number("runs", 3);
+        int warmup = (int) number("warmup", 1);
+        console.printf("%s %d x %s, loss %.3f, delay %d ms, reorder %.3f (+%d ms), bandwidth %s%n",
+                upload ? "upload" : "download", sessions, human(size), loss, delayMillis, reorderRate, reorderMillis,
+                (bandwidth > 0) ? human(bandwidth) + "/s" : "unlimited");
+
+        List<Path> sources = createSources();
+        ReliableServer server = startServer();
+        LatencyHistogram completion = new LatencyHistogram();
+        long totalBytes = 0;
+        long totalNanos = 0;
+        long totalAllocated = 0;
+        boolean quiet = !Boolean.parseBoolean(text("verbose", "false"));
+        try {
+            for (int run = 0; run < warmup + runs; run++) {
+                boolean measured = run >= warmup;
+                AllocationMeter allocations = new AllocationMeter();
+                long retransmissionsBefore = retransmissions(server);
+                long recoveredBefore = recovered(server);
+                if (quiet) {
+                    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                }
+                long[] sessionNanos;
+                long wallNanos;
+                try {
+                    long start = System.nanoTime();
+                    sessionNanos = runSessions(sources);
+                    wallNanos = System.nanoTime() - start;
+                } finally {
+                    System.setOut(console);
+                }
+                long allocated = allocations.stop();
+                long moved = size * sessions;
+                console.printf("%s %d: %8.2f MB/s  %7.1f ms  alloc %8.1f MB/s (%.2f B per byte moved)  retransmissions %d  recovered %d%n",
+                        measured ? "run   " : "warmup", measured ? run - warmup + 1 : run + 1,
+                        moved / 1e6 / (wallNanos / 1e9), wallNanos / 1e6,
+                        allocated / 1e6 / (wallNanos / 1e9), (double) allocated / moved,
+                        retransmissions(server) - retransmissionsBefore, recovered(server) - recoveredBefore);
+                if (measured) {
+                    for (long nanos : sessionNanos) {
+                        completion.recordNanos(nanos);
+                    }
+                    totalBytes += moved;
+                    totalNanos += wallNanos;
+                    totalAllocated += allocated;
+                }
+            }
+            if (runs > 0) {
+                console.printf("overall: %.2f MB/s, completion p50 %.1f ms, p99 %.1f ms, max %.1f ms, alloc %.1f MB/s%n",
+                        totalBytes / 1e6 / (totalNanos / 1e9), completion.getPercentile(50) / 1000.0,
+                        completion.getPercentile(99) / 1000.0, completion.getMax() / 1000.0,
+                        totalAllocated / 1e6 / (totalNanos / 1e9));
+            }
+            console.println("server: " + server.getMetrics().snapshot());
+        } finally {
+            // Upload sessions linger for a timeout after their FIN; let them finish rather than interrupt them
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5 * TIMEOUT_MILLIS);
+            while (server.getActiveSessionCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            server.stop();
+            for (Path source : sources) {
+                Files.deleteIfExists(source);
+                Files.deleteIfExists(Paths.get("client_" + source));
+                Files.deleteIfExists(Paths.get("server_" + source));
+            }
+        }
+    }
+
+    // One random file per session, so concurrent uploads never write the same target
+    private List<Path> createSources() throws IOException {
+        List<Path> sources = new ArrayList<>();
+        Random random = new Random(42);
+        byte[] block = new byte[1 << 20];
+        for (int i = 0; i < sessions; i++) {
+            Path path = Paths.get("bench_" + i + ".bin");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+                for (long written = 0; written < size; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+            }
+            sources.add(path);
+        }
+        return sources;
+    }
+
+    private ReliableServer startServer() throws IOException, InterruptedException {
+        int shards = (int) number("shards", 1);
+        Transport transport = Boolean.parseBoolean(text("nio", "false"))
+                ? new NioTransport(port, TIMEOUT_MILLIS, shards > 1) : new SocketManager(port, TIMEOUT_MILLIS, shards > 1);
+        ReliableServer server = new ReliableServer(emulate(transport), Math.max(16, sessions * 2));
+        server.setShards(shards);
+        server.setMaxMtu((int) number("mtu", Packet.MAX_MTU));
+        long cache = bytes("cache", String.valueOf(SegmentCache.DEFAULT_BUDGET));
+        server.setFileCache(cache, SegmentCache.TINY_LFU);
+        Thread dispatcher = new Thread(server::start, "benchmark-server");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        Thread.sleep(100);
+        return server;
+    }
+
+    private Transport emulate(Transport transport) {
+        if (loss == 0 && delayMillis == 0 && reorderRate == 0 && bandwidth == 0) {
+            return transport;
+        }
+        return new LinkEmulator(transport, loss, delayMillis, bandwidth, queueBytes).withReordering(reorderRate, reorderMillis);
+    }
+
+    // Runs every session at once; returns each one's completion time
+    private long[] runSessions(List<Path> sources) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        CountDownLatch go = new CountDownLatch(1);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (Path source : sources) {
+                results.add(pool.submit(() -> {
+                    String name = source.toString();
+                    Files.deleteIfExists(Paths.get((upload ? "server_" : "client_") + name));
+                    Transport transport = emulate(new SocketManager(0, TIMEOUT_MILLIS));
+                    long nanos;
+                    try {
+                        ReliableClient client = newClient(transport);
+                        go.await();
+                        long start = System.nanoTime();
+                        if (upload) {
+                            client.uploadFile(name);
+                        } else {
+                            client.downloadFile(name);
+                        }
+                        nanos = System.nanoTime() - start;
+                        clientRetransmissions.add(client.getMetrics().getRetransmissions());
+                        clientRecovered.add(client.getMetrics().getRecovered());
+                    } finally {
+                        transport.close();
+                    }
+                    Path copy = Paths.get((upload ? "server_" : "client_") + name);
+                    if (!Files.exists(copy) || Files.mismatch(source, copy) != -1) {
+                        throw new IOException("Transfer of " + name + " failed or is corrupt");
+                    }
+                    return nanos;
+                }));
+            }
+            go.countDown();
+            long[] nanos = new long[results.size()];
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = results.get(i).get();
+            }
+            return nanos;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // DATA resent by either side: the server for downloads, the clients for uploads
+    private long retransmissions(ReliableServer server) {
+        return server.getMetrics().getRetransmissions() + clientRetransmissions.sum();
+    }
+
+    // DATA rebuilt from parity by either side: the clients for downloads, the server for uploads
+    private long recovered(ReliableServer server) {
+        return server.getMetrics().getRecovered() + clientRecovered.sum();
+    }
+
+    private ReliableClient newClient(Transport transport) throws IOException {
+        ReliableClient client = new ReliableClient("127.0.0.1", port, transport);
+        client.setWindowSize((int) number("window", 64));
+        client.setRecoveryMode(text("mode", SessionOptions.SELECTIVE_REPEAT));
+        client.setCongestionControl(text("cc", CongestionControl.CUBIC));
+        client.setStripes((int) number("stripes", 1));
+        client.setCompression((int) number("compress", 0));
+        client.setFec((int) number("fec", 0));
+        client.setMaxMtu((int) number("mtu", Packet.MAX_MTU));
+        return client;
+    }
+
+    // --- Allocation Measurement ---
+
+    // Bytes allocated by every thread in the process between construction and stop(). Threads are sampled
+    // every SAMPLE_MILLIS, so one that ends between samples only loses its last few milliseconds.
+    private static final class AllocationMeter {
+        private static final long SAMPLE_MILLIS = 20;
+
+        private final com.sun.management.ThreadMXBean threads;
+        private final Map<Long, Long> startBytes = new HashMap<>();
+        private final Map<Long, Long> lastBytes = new HashMap<>(); // guarded by this
+        private final ScheduledExecutorService sampler;
+
+        AllocationMeter() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            this.threads = (bean instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) bean : null;
+            if (threads == null) {
+                sampler = null;
+                return;
+            }
+            sample(startBytes);
+            sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "allocation-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sampler.scheduleAtFixedRate(() -> {
+                synchronized (this) {
+                    sample(lastBytes);
+                }
+            }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        // Records each live thread's counter, keeping the highest value seen
+        private void sample(Map<Long, Long> into) {
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0) {
+                    into.merge(ids[i], allocated[i], Math::max);
+                }
+            }
+        }
+
+        long stop() throws InterruptedException {
+            if (threads == null) {
+                return 0;
+            }
+            sampler.shutdown();
+            sampler.awaitTermination(1, TimeUnit.SECONDS);
+            synchronized (this) {
+                sample(lastBytes);
+                long total = 0;
+                for (Map.Entry<Long, Long> entry : lastBytes.entrySet()) {
+                    total += entry.getValue() - startBytes.getOrDefault(entry.getKey(), 0L);
+                }
+                return total;
+            }
+        }
+    }
+
+    // --- Settings ---
+
+    private String text(String key, String defaultValue) {
+        return settings.getOrDefault(key, defaultValue);
+    }
+
+    private long number(String key, long defaultValue) {
+        String value = settings.get(key);
+        return (value == null) ? defaultValue : Long.parseLong(value);
+    }
+
+    // A byte count with an optional k, m or g suffix (powers of 1024)
+    private long bytes(String key, String defaultValue) {
+        String value = text(key, defaultValue).toLowerCase();
+        int shift = 0;
+        if (value.endsWith("k")) {
+            shift = 10;
+        } else if (value.endsWith("m")) {
+            shift = 20;
+        } else if (value.endsWith("g")) {
+            shift = 30;
+        }
+        if (shift > 0) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) << shift;
+    }
+
+    private static String human(long bytes) {
+        if (bytes >= 1 << 20) {
+            return String.format("%.1f MB", bytes / (double) (1 << 20));
+        }
+        return String.format("%.1f KB", bytes / 1024.0);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The project-side half of PacketCodecBenchmark: the data and the operations it times (see
+ * bench.PacketCodec for why they are split). Everything is set up once per benchmark thread.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+public class PacketCodecFixture implements bench.PacketCodec {
+    private Packet packet;
+    private byte[] encoded;
+    private ByteBuffer encodedDirect;
+    private BufferPool pool;
+    private PacketView view;
+
+    private byte[] payload;
+    private ByteBuffer payloadBuffer;
+    private BufferPool inboxPool;
+    private PacketView sendView;
+    private PacketView receiveView;
+    private OutputStream sink;
+
+    private Packet segment;
+    private FecEncoder fec;
+    private PacketChannel discard;
+
+    @Override
+    public void setup(Blackhole blackhole) {
+        payload = new byte[Packet.DEFAULT_SEGMENT_SIZE];
+        new Random(42).nextBytes(payload);
+        packet = new Packet(Packet.DATA, 1, 7, payload);
+        encoded = packet.toByteArray();
+        encodedDirect = ByteBuffer.allocateDirect(encoded.length).put(encoded).flip();
+        pool = BufferPool.forPackets(64);
+        view = new PacketView();
+
+        payloadBuffer = ByteBuffer.wrap(payload);
+        inboxPool = new BufferPool(64, Packet.MAX_DATAGRAM_PAYLOAD, false);
+        sendView = new PacketView();
+        receiveView = new PacketView();
+        sink = OutputStream.nullOutputStream();
+
+        segment = Packet.wrap(Packet.DATA, 0, 7, ByteBuffer.wrap(payload));
+        fec = new FecEncoder(16, Packet.DEFAULT_SEGMENT_SIZE, Packet.MAX_MTU, 0);
+        discard = new DiscardChannel(blackhole);
+    }
+
+    @Override
+    public Object toByteArray() {
+        return packet.toByteArray();
+    }
+
+    @Override
+    public Object fromByteArray() {
+        return Packet.fromByteArray(encoded);
+    }
+
+    @Override
+    public int writeTo() {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            packet.writeTo(buffer);
+            return buffer.position();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public long packetViewWrap() {
+        view.wrap(encodedDirect);
+        return view.getSequenceNumber() + view.getPayloadLength();
+    }
+
+    @Override
+    public int legacyRoundTrip() {
+        try {
+            Packet sent = new Packet(Packet.DATA, 1, 7, payload);
+            Packet received = Packet.fromByteArray(sent.toByteArray());
+            byte[] copy = received.getPayload();
+            sink.write(copy);
+            return copy.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int pooledRoundTrip() {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            sendView.encode(buffer, Packet.DATA, 1, 7, payloadBuffer.clear());
+            Packet received = receiveView.wrap(buffer).toPooledPacket(inboxPool);
+            received.writePayloadTo(sink);
+            received.release();
+            return received.getPayloadLength();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public int fecEncoderAdd() {
+        try {
+            return fec.add(segment) ? fec.flush(discard) : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Hands the parity packets FecEncoder sends to the Blackhole
+    private static final class DiscardChannel implements PacketChannel {
+        private final Blackhole blackhole;
+
+        DiscardChannel(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void send(Packet packet) {
+            blackhole.consume(packet);
+        }
+
+        @Override
+        public Packet receive() {
+            return null;
+        }
+
+        @Override
+        public Packet receive(long timeoutMillis) {
+            return null;
+        }
+
+        @Override
+        public int getSessionId() {
+            return 7;
+        }
+
+        @Override
+        public int getTimeout() {
+            return 0;
+        }
+
+        @Override
+        public RetransmissionTimer getRetransmissionTimer() {
+            return null;
+        }
+
+        @Override
+        public TransferMetrics getMetrics() {
+            return null;
+        }
+    }
+}
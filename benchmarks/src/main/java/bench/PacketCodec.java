@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The codec operations PacketCodecBenchmark measures, one full DATA segment each.
+ * JMH won't run benchmark classes from the default package, and a named package can't see the
+ * project's (default-package) classes, so the operations live in PacketCodecFixture next to
+ * them and the benchmark calls through this interface. There is only ever one implementation,
+ * so the JIT inlines the calls.
+ */
+public interface PacketCodec {
+
+    void setup(Blackhole blackhole);
+
+    // Packet.toByteArray: a new heap array per call
+    Object toByteArray();
+
+    // Packet.fromByteArray: a new Packet and payload array per call
+    Object fromByteArray();
+
+    // Packet.writeTo a pooled direct buffer; returns the encoded length
+    int writeTo();
+
+    // PacketView.wrap over an encoded direct buffer (checksum verified); returns a header field
+    long packetViewWrap();
+
+    // The array codec as it was: new Packet, toByteArray, fromByteArray, then the payload copied out
+    // to a stream with getPayload(); returns the bytes written
+    int legacyRoundTrip();
+
+    // The same trip on the pooled path: PacketView.encode into a pooled direct buffer, wrap, hand off
+    // as a pooled packet (the server inbox) and Packet.writePayloadTo the stream; returns the bytes written
+    int pooledRoundTrip();
+
+    // FecEncoder.add of one segment into a 16-segment block, parity flushed after every block
+    int fecEncoderAdd();
+
+    static PacketCodec load() {
+        try {
+            return (PacketCodec) Class.forName("PacketCodecFixture").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("PacketCodecFixture missing from the benchmark jar", e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * JMH microbenchmarks for the packet codec, one full DATA segment per operation (see PacketCodec).
+ * - Packet.toByteArray / Packet.fromByteArray: the heap codec, allocating per call
+ * - Packet.writeTo / PacketView.wrap: the same encoding into, and decoding from, a pooled
+ *   direct buffer, with nothing allocated in steady state
+ * - legacyRoundTrip / pooledRoundTrip: old against new, sender's payload to receiver's stream
+ * - FecEncoder.add: it has to keep well ahead of the send path
+ * - Every result is returned to JMH, so nothing is eliminated as dead code; add "-prof gc" for
+ *   the bytes allocated per operation
+ *
+ * Run: mvn -B package && java -jar benchmarks/target/benchmarks.jar PacketCodecBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+    private PacketCodec codec;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        codec = PacketCodec.load();
+        codec.setup(blackhole);
+    }
+
+    @Benchmark
+    public Object toByteArray() {
+        return codec.toByteArray();
+    }
+
+    @Benchmark
+    public Object fromByteArray() {
+        return codec.fromByteArray();
+    }
+
+    @Benchmark
+    public int writeTo() {
+        return codec.writeTo();
+    }
+
+    @Benchmark
+    public long packetViewWrap() {
+        return codec.packetViewWrap();
+    }
+
+    @Benchmark
+    public int legacyRoundTrip() {
+        return codec.legacyRoundTrip();
+    }
+
+    @Benchmark
+    public int pooledRoundTrip() {
+        return codec.pooledRoundTrip();
+    }
+
+    @Benchmark
+    public int fecEncoderAdd() {
+        return codec.fecEncoderAdd();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * SlidingWindowSender against an in-memory peer: a ReceiveWindow that ACKs every segment,
+ * behind a channel that can drop chosen transmissions.
+ * - The RTO is pinned far above the test's time limit, so anything resent within it was
+ *   resent by fast retransmit, not by the timer
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.time.Duration;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowSenderTest {
+    private static final long RTO_MILLIS = 10_000;
+
+    @Test
+    void sackedHoleIsResentBeforeTheTimerWithoutFec() throws Exception {
+        SessionOptions options = new SessionOptions()
+                .set(SessionOptions.WINDOW, 16)
+                .set(SessionOptions.MODE, SessionOptions.SELECTIVE_REPEAT)
+                .set(SessionOptions.SACK, SelectiveAck.VERSION);
+        assertEquals(0, options.getFecBlock());
+
+        byte[] data = new byte[20 * options.getSegmentSize() + 17];
+        new Random(1).nextBytes(data);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        LoopbackChannel channel = new LoopbackChannel(new ReceiveWindow(received, options, 0), 1);
+
+        SlidingWindowSender sender = new SlidingWindowSender(channel, options, 0);
+        boolean done = assertTimeoutPreemptively(Duration.ofMillis(RTO_MILLIS / 2),
+                () -> sender.transfer(new ByteArrayInputStream(data)));
+
+        assertTrue(done);
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(0, channel.getMetrics().getTimeouts());
+        assertEquals(1, channel.getMetrics().getRetransmissions());
+    }
+
+    // Hands every DATA to 'window' (except the first transmission of each 'drop' sequence number)
+    // and queues its ACKs for the sender
+    private static final class LoopbackChannel implements PacketChannel {
+        private final ReceiveWindow window;
+        private final Set<Long> drop = new HashSet<>();
+        private final ArrayDeque<Packet> acks = new ArrayDeque<>();
+        private final RetransmissionTimer timer = new RetransmissionTimer(RTO_MILLIS, RTO_MILLIS, RTO_MILLIS);
+        private final TransferMetrics metrics = new TransferMetrics();
+
+        LoopbackChannel(ReceiveWindow window, long... drop) {
+            this.window = window;
+            for (long seq : drop) {
+                this.drop.add(seq);
+            }
+        }
+
+        @Override
+        public void send(Packet packet) throws IOException {
+            if (packet.getMessageType() != Packet.DATA || drop.remove(packet.getSequenceNumber())) {
+                return;
+            }
+            Packet ack = window.onData(packet);
+            if (ack != null) {
+                acks.add(ack);
+            }
+        }
+
+        @Override
+        public Packet receive() throws IOException {
+            return receive(getTimeout());
+        }
+
+        @Override
+        public Packet receive(long timeoutMillis) throws IOException {
+            Packet ack = acks.poll();
+            if (ack == null) {
+                // Nothing can arrive any more: wait out the timeout like a real channel would
+                try {
+                    Thread.sleep(timeoutMillis);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return ack;
+        }
+
+        @Override
+        public int getSessionId() {
+            return 1;
+        }
+
+        @Override
+        public int getTimeout() {
+            return (int) RTO_MILLIS;
+        }
+
+        @Override
+        public RetransmissionTimer getRetransmissionTimer() {
+            return timer;
+        }
+
+        @Override
+        public TransferMetrics getMetrics() {
+            return metrics;
+        }
+    }
+}